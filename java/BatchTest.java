@@ -100,7 +100,7 @@ class BatchTest {
 
 			Source source = sources.get(file);
 			SourceText text = texts.get(file);		
-			Set<SourceFragment> fragments = processor.process(results.get(file), text);
+			Set<SourceFragment> fragments = process(file, processor);
 			
 			runTest(source, text, fragments, processor.disabled());
 		}
@@ -189,11 +189,13 @@ class BatchTest {
 	
 	public void start (Processor processor) {
 		Callable<Collection<FileTest>> batch = new BatchRun(processor, queue.size());
+		retain(processor);
 		queue.add(executor.submit(batch));
 	}
 	
 	public BatchTest test (Processor processor) {
 		BatchRun batch = new BatchRun(processor, 0);
+		retain(processor);
 		tests = batch.call();
 		return this;
 	}
@@ -221,6 +223,76 @@ class BatchTest {
 	
 	public void end () {
 		executor.shutdown();
+		candidates.clear();
+		pending.clear();
+	}
+
+	//===========================================================//	
+	// Process a file, scoring it only once for each group of processor
+	// settings. Runs which only change the minimum score share the
+	// scoring, and each just cuts the results at its own minimum.
+	//
+	// Each run counts itself in pending for every file it will process
+	// when it starts, and out again as it processes each one, so a file's
+	// scoring is dropped as soon as the last run sharing it is done.
+	//
+	private final ConcurrentMap<List<Object>, Future<Processor.ScoredCandidates>> candidates = new ConcurrentHashMap<>();
+	private final Map<List<Object>, Integer> pending = new HashMap<>();
+	
+	private static List<Object> key (File file, Processor processor) {
+		return Arrays.<Object>asList(file.getPath(), processor.scoringSettings());
+	}
+	
+	private void retain (Processor processor) {
+		List<File> files = new ArrayList<>(suspectFiles);
+		if (dynamic)
+			files.addAll(sourceFiles);
+		synchronized (pending) {
+			for (File file : files) {
+				List<Object> key = key(file, processor);
+				Integer count = pending.get(key);
+				pending.put(key, count == null ? 1 : count + 1);
+			}
+		}
+	}
+	
+	private void release (List<Object> key) {
+		synchronized (pending) {
+			Integer count = pending.get(key);
+			if (count == null || count <= 1) {
+				pending.remove(key);
+				candidates.remove(key);
+			} else {
+				pending.put(key, count - 1);
+			}
+		}
+	}
+	
+	private Set<SourceFragment> process (final File file, final Processor processor) {
+		List<Object> key = key(file, processor);
+		Future<Processor.ScoredCandidates> scored = candidates.get(key);
+		if (scored == null) {
+			FutureTask<Processor.ScoredCandidates> scoring = new FutureTask<>(
+				new Callable<Processor.ScoredCandidates>() {
+					public Processor.ScoredCandidates call () {
+						return processor.score(results.get(file), texts.get(file));
+					}
+				}
+			);
+			scored = candidates.putIfAbsent(key, scoring);
+			if (scored == null) {					// we're first, so do the scoring here
+				scored = scoring;
+				scoring.run();
+			}
+		}
+		try {
+			return scored.get().threshold(processor.minimumScore());
+		} catch (Exception e) {
+			e.printStackTrace();
+			return new HashSet<>();
+		} finally {
+			release(key);
+		}
 	}
 
 	//===========================================================//	
@@ -386,7 +458,7 @@ class BatchTest {
 			
 			String link = file.getPath();
 			if (processor != null) {		
-				Set<SourceFragment> hits = processor.process(results.get(file), texts.get(file));				
+				Set<SourceFragment> hits = process(file, processor);				
 				Set<SourceFragment> visibles = texts.get(file).getVisible(hits);
 				if (!processor.disabled()) {
 					hits = SourceFragment.switchToMatches(hits);
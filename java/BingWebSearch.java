@@ -82,4 +82,10 @@ public class BingWebSearch extends SearchEngine {
 		
 		return queryData;
 	}
+	
+	// Each account key has its own rate limit
+	@Override
+	protected String rateLimitKey (int id) {
+		return BingAccountInfo.getKey(id);
+	}
  }
\ No newline at end of file
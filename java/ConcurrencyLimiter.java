@@ -0,0 +1,96 @@
+/**
+ *  @author Brian St. Marie
+ *  stmarie@fas.harvard.edu
+ *
+ */
+ 
+package citeunseen;
+
+import java.util.concurrent.TimeUnit;
+
+// Adaptive limit on the number of requests in flight to a provider.
+// The limit grows by about one connection for each round of responses
+// while response times hold steady, and halves whenever the provider
+// throttles us (additive increase, multiplicative decrease), staying
+// between one and the configured maximum.
+//
+public class ConcurrencyLimiter {
+	// A response this many times slower than usual isn't steady
+	private static final double STABLE_LATENCY = 2.0;
+	
+	// Weight of each new response in the usual response time
+	private static final double SMOOTHING = 0.1;
+	
+	// Until a response has been timed, errors this close together
+	// count as one burst
+	private static final long BURST_WINDOW = TimeUnit.SECONDS.toNanos(1);
+	
+	private final int maxLimit;
+	private double limit;
+	private int inFlight = 0;
+	
+	private double latency = 0;		// usual response time, nanoseconds
+	private long lastDecrease;
+	private boolean decreased = false;
+
+	// Constructor, starting at a quarter of the maximum
+	public ConcurrencyLimiter (int maxLimit) {
+		this.maxLimit = Math.max(1, maxLimit);
+		this.limit = Math.max(1, this.maxLimit / 4);
+	}
+	
+	// Getters
+	public synchronized int limit () {
+		return (int)limit;
+	}
+	
+	public synchronized int inFlight () {
+		return inFlight;
+	}
+	
+	// Wait for room under the limit, then take it. Gives up and returns
+	// false if there's still no room by the deadline, in System.nanoTime().
+	//
+	public synchronized boolean acquire (long deadline) throws InterruptedException {
+		while (inFlight >= (int)limit) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		inFlight++;
+		return true;
+	}
+	
+	public synchronized void release () {
+		inFlight--;
+		notifyAll();
+	}
+	
+	// A response arrived after this many nanoseconds
+	//
+	public synchronized void succeeded (long responseTime) {
+		if (latency == 0)
+			latency = responseTime;
+		boolean stable = responseTime <= STABLE_LATENCY * latency;
+		latency += (responseTime - latency) * SMOOTHING;
+		
+		if (stable && limit < maxLimit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+			notifyAll();
+		}
+	}
+	
+	// The provider throttled us or failed under load. Errors from the
+	// same burst arrive together, so only back off once per response time.
+	//
+	public synchronized void throttled () {
+		long now = System.nanoTime();
+		double window = (latency == 0) ? BURST_WINDOW : latency;
+		if (decreased && now - lastDecrease < window)
+			return;
+		decreased = true;
+		lastDecrease = now;
+		limit = Math.max(1, limit / 2);
+	}
+}
@@ -234,6 +234,137 @@ public class Dev {
 			return false;
 		}
 	}
+	
+	// Load the cached SERPs for these ngrams, or all of them if ngrams is
+	// null. Reads both SerpCache files and older serialized maps.
+	//
+	@SuppressWarnings("unchecked")
+	public static Map<String, String> importSerps (String path, Set<String> ngrams) {
+		if (!SerpCache.isSerpCache(path)) {
+			Map<String, String> serps = (Map<String, String>)importCache(path);
+			if (serps != null && ngrams != null)
+				serps.keySet().retainAll(ngrams);
+			return serps;
+		}
+		
+		out.print("Loading cache...");
+		Timer timer = Timer.startNew();
+		Map<String, String> serps = new HashMap<>();
+		
+		try (SerpCache cache = new SerpCache(path)) {
+			while (cache.next()) {
+				if (cache.type() == SerpCache.SERP && (ngrams == null || ngrams.contains(cache.ngram())))
+					serps.put(cache.ngram(), cache.serp());
+			}
+			out.println("complete! ("+timer.s()+"s)");
+		} catch (IOException e) {
+			out.println("failed! "+e.getMessage());
+			return null;
+		}
+		return serps;
+	}
+	
+	public static boolean exportSerps (Map<String, String> serps, String path, SearchEngine engine) {
+		return writeCache(serps, null, path, engine, false);
+	}
+	
+	// Add SERPs to the end of a cache, where they replace any earlier
+	// SERPs for the same ngrams. Older caches are converted first.
+	//
+	public static boolean appendSerps (Map<String, String> serps, String path, SearchEngine engine) {
+		if (new File(path).exists() && SerpCache.version(path) != SerpCache.VERSION) {
+			Map<String, String> all = importSerps(path, null);
+			if (all == null)
+				return false;
+			all.putAll(serps);
+			return exportSerps(all, path, engine);
+		}
+		return writeCache(serps, null, path, engine, true);
+	}
+	
+	// Load the cached search results for these ngrams, or all of them if
+	// ngrams is null. Raw SERPs, as older caches hold, are parsed as they
+	// are read, skipping any that fail so they get searched again.
+	//
+	public static Map<String, SearchResult> importResults (String path, Set<String> ngrams, SearchEngine engine) {
+		if (!SerpCache.isSerpCache(path)) {
+			Map<String, String> serps = importSerps(path, ngrams);
+			if (serps == null)
+				return null;
+			Map<String, SearchResult> results = new HashMap<>();
+			for (Map.Entry<String, String> entry : serps.entrySet())
+				putParsed(results, entry.getKey(), entry.getValue(), engine);
+			return results;
+		}
+		
+		out.print("Loading cache...");
+		Timer timer = Timer.startNew();
+		Map<String, SearchResult> results = new HashMap<>();
+		
+		try (SerpCache cache = new SerpCache(path)) {
+			if (!cache.engine().equals("") && !cache.engine().equals(engine.toString()))
+				throw new IOException("Cache is for "+cache.engine()+", not "+engine);
+				
+			while (cache.next()) {
+				String ngram = cache.ngram();
+				if (ngrams != null && !ngrams.contains(ngram))
+					continue;
+				if (cache.type() == SerpCache.RESULT)
+					results.put(ngram, cache.result());
+				else
+					putParsed(results, ngram, cache.serp(), engine);
+			}
+			out.println("complete! ("+timer.s()+"s)");
+		} catch (IOException e) {
+			out.println("failed! "+e.getMessage());
+			return null;
+		}
+		return results;
+	}
+	
+	private static void putParsed (Map<String, SearchResult> results, String ngram, String serp, SearchEngine engine) {
+		if (serp == null || serp.equals(""))
+			return;
+		try {
+			results.put(ngram, engine.getSerpParser().parse(serp));
+		} catch (RuntimeException e) {
+			// left out, so it's searched again
+		}
+	}
+	
+	public static boolean exportResults (Map<String, SearchResult> results, String path, SearchEngine engine) {
+		return writeCache(null, results, path, engine, false);
+	}
+	
+	// Add search results to the end of a cache, the same way as appendSerps
+	//
+	public static boolean appendResults (Map<String, SearchResult> results, String path, SearchEngine engine) {
+		if (new File(path).exists() && SerpCache.version(path) != SerpCache.VERSION) {
+			Map<String, SearchResult> all = importResults(path, null, engine);
+			if (all == null)
+				return false;
+			all.putAll(results);
+			return exportResults(all, path, engine);
+		}
+		return writeCache(null, results, path, engine, true);
+	}
+	
+	private static boolean writeCache (Map<String, String> serps, Map<String, SearchResult> results, String path, SearchEngine engine, boolean append) {
+		out.print("Saving cache...");
+		Timer timer = Timer.startNew();
+		
+		try {
+			if (serps != null)
+				SerpCache.writeSerps(serps, path, engine.toString(), append);
+			else
+				SerpCache.writeResults(results, path, engine.toString(), append);
+			out.println("complete! ("+timer.s()+"s)");
+			return true;
+		} catch (IOException e) {
+			out.println("failed! "+e.getMessage());
+			return false;
+		}
+	}
 	//===========================================================//
 		
 }
\ No newline at end of file
@@ -6,22 +6,31 @@
  
 package citeunseen;
  
+import java.io.*;
 import java.util.*;
+import java.math.BigDecimal;
 
 import com.google.gson.*;
+import com.google.gson.stream.*;
 import org.apache.commons.lang3.StringUtils;
 
 public class JsonSerpParser extends SerpParser {
 	private final String errorContainer;
 	private final String errorMessage;
 	
-	private final String parentContainers;
 	private final String resultsArray;
 	private final String informationContainer;
 	private final String urlElement;
 	private final String snippetElement;
 	private final String totalResultsElement;
 	
+	// Path to the root object, compiled once from parentContainers.
+	// A parent is an element name, or inside an array an index written
+	// as "[i]", which also has its parsed index.
+	//
+	private final String[] parents;
+	private final int[] parentIndexes;
+	
 	private final JsonParser parser;
 	
 	// Constructor
@@ -32,13 +41,20 @@ public class JsonSerpParser extends SerpParser {
 		errorContainer = elements.get("errorContainer");
 		errorMessage = elements.get("errorMessage");
 		
-		parentContainers = elements.get("parentContainers");
 		resultsArray = elements.get("resultsArray");
 		informationContainer = elements.get("informationContainer");
 		urlElement = elements.get("urlElement");
 		snippetElement = elements.get("snippetElement");
 		totalResultsElement = elements.get("totalResultsElement");
 		
+		String parentContainers = elements.get("parentContainers");
+		parents = (parentContainers == null) ? new String[0] : parentContainers.split(" ");
+		parentIndexes = new int[parents.length];
+		for (int i = 0; i < parents.length; i++) {
+			String index = StringUtils.substringBetween(parents[i], "[", "]");
+			parentIndexes[i] = (index == null) ? -1 : Integer.parseInt(index);
+		}
+		
 		parser = new JsonParser();
 	}
 	
@@ -55,24 +71,24 @@ public class JsonSerpParser extends SerpParser {
 		// Sometimes, errors don't have the parent elements,
 		// so be sure to check for them
 		//
-		if (parentContainers != null) {		
-			JsonElement child = null;
-			String[] parents = parentContainers.split(" ");
-			for (String parent : parents) {
-				if (json.isJsonObject())
-					child = json.getAsJsonObject().get(parent);
-				else if (json.isJsonArray()) {
-					int i = Integer.parseInt(StringUtils.substringBetween(parent, "[", "]"));
-					child = json.getAsJsonArray().get(i);
-				}
-				if (child != null)
-					json = child;
+		JsonElement child = null;
+		for (int i = 0; i < parents.length; i++) {
+			if (json.isJsonObject())
+				child = json.getAsJsonObject().get(parents[i]);
+			else if (json.isJsonArray()) {
+				if (parentIndexes[i] < 0)
+					throw new JsonParseException("Expected an index into an array: "+parents[i]);
+				child = json.getAsJsonArray().get(parentIndexes[i]);
 			}
+			if (child != null)
+				json = child;
 		}
 		return json.getAsJsonObject();
 	}
 
 	// Implementation for JSON parsing of error responses
+	// Errors are rare, so these just use the tree parser
+	//
 	@Override
 	public String parseError (String serp) {
 		JsonObject json = getJsonRoot(serp);			
@@ -83,36 +99,252 @@ public class JsonSerpParser extends SerpParser {
 	}
 	
 	// Implementation for JSON parsing of results
+	//
+	// Streams through the SERP once, without building a tree. Like the tree
+	// parser, a parent missing from the SERP is skipped, and the root is
+	// the object reached by following the parents that are there.
+	//
 	@Override
 	public SearchResult parse (String serp) {
-		long totalResults = 0;
-
-		// Get the root of the JSON object we're interested in
-		JsonObject json = getJsonRoot(serp);
-				
-		// Get our results array
-		JsonArray results = json.getAsJsonArray(resultsArray);
-
-		// If the total results is contained in a separate informational section
-		if (informationContainer != null)
-			json = json.getAsJsonObject(informationContainer);
+		Root root;
+		try {
+			JsonReader reader = new JsonReader(new StringReader(serp));
+			reader.setLenient(true);
+			if (reader.peek() != JsonToken.BEGIN_OBJECT)
+				throw new JsonParseException("Expected a JSON object: "+reader.peek());
+			root = readRoot(reader, 0);
+			if (reader.peek() != JsonToken.END_DOCUMENT)
+				throw new JsonParseException("Did not consume the entire document.");
+		} catch (IOException e) {
+			throw new JsonParseException(e);
+		}
+		root.check(informationContainer != null, totalResultsElement != null);
 		
-		// If this engine supports total results
-		if (totalResultsElement != null)
-			totalResults = json.getAsJsonPrimitive(totalResultsElement).getAsLong();
-			
 		SearchResult searchResult = new SearchResult();
-		searchResult.setTotalResults(totalResults);
+		searchResult.setTotalResults(totalResultsElement == null ? 0 : root.totalResults);
 
-		// Cycle through all results, if there are any results
+		// Add all results, if there are any results
 		//
-		if (results != null) for (JsonElement e : results) {
-			JsonObject result = e.getAsJsonObject();
-			String url = result.getAsJsonPrimitive(urlElement).getAsString();
-			String snippet = result.getAsJsonPrimitive(snippetElement).getAsString();				
-
-			searchResult.put(url, snippet);		
+		if (root.results != null) {
+			for (int i = 0; i < root.results.size(); i += 2)
+				searchResult.put(root.results.get(i), root.results.get(i + 1));
 		}
 		return searchResult;
 	}
-}
\ No newline at end of file
+	
+	//===========================================================//
+	// Streaming parser
+	//===========================================================//
+	
+	// What we found in a candidate root, with results as url, snippet pairs.
+	//
+	// A later element with the same name replaces an earlier one, and only
+	// the root the path ends at matters, so anything malformed is just
+	// noted as we go, and only reported by check() on the final root.
+	//
+	private static class Root {
+		private String error;
+		private List<String> results;
+		private String resultsError;
+		private boolean information;
+		private String informationError;
+		private Long totalResults;
+		private String totalResultsError;
+		
+		static Root error (String error) {
+			Root root = new Root();
+			root.error = error;
+			return root;
+		}
+		
+		void check (boolean informationContainer, boolean totalResultsElement) {
+			if (error != null)
+				throw new JsonParseException(error);
+			if (resultsError != null)
+				throw new JsonParseException(resultsError);
+			if (informationContainer && informationError != null)
+				throw new JsonParseException(informationError);
+			if (totalResultsElement) {
+				if (informationContainer && !information)
+					throw new JsonParseException("Missing information container");
+				if (totalResultsError != null)
+					throw new JsonParseException(totalResultsError);
+				if (totalResults == null)
+					throw new JsonParseException("Missing total results");
+			}
+		}
+	}
+	
+	// Read the next value, returning the deepest root found by following
+	// parents from the given one on
+	//
+	private Root readRoot (JsonReader reader, int parent) throws IOException {
+		switch (reader.peek()) {
+			case BEGIN_OBJECT	:	return readRootObject(reader, parent);
+			case BEGIN_ARRAY	:	return readRootArray(reader, parent);
+		}
+		reader.skipValue();
+		return Root.error("Expected a JSON object at the root of the results");
+	}
+	
+	private Root readRootObject (JsonReader reader, int parent) throws IOException {
+		Root root = new Root();
+		Root child = null;
+		int childParent = parents.length;
+		
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			
+			// The first remaining parent in this object is the way down
+			int found = findParent(name, parent);
+			if (found >= 0 && found <= childParent) {
+				child = readRoot(reader, found + 1);
+				childParent = found;
+			} else if (found >= 0) {
+				reader.skipValue();
+			} else if (name.equals(resultsArray)) {
+				readResults(reader, root);
+			} else if (informationContainer != null && name.equals(informationContainer)) {
+				readInformation(reader, root);
+			} else if (informationContainer == null && name.equals(totalResultsElement)) {
+				readTotalResults(reader, root);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		return (child != null) ? child : root;
+	}
+	
+	private Root readRootArray (JsonReader reader, int parent) throws IOException {
+		if (parent >= parents.length || parentIndexes[parent] < 0) {
+			reader.skipValue();
+			if (parent >= parents.length)
+				return Root.error("Expected a JSON object at the root of the results");
+			return Root.error("Expected an index into an array: "+parents[parent]);
+		}
+		
+		Root child = null;
+		int index = 0;
+		reader.beginArray();
+		while (reader.hasNext()) {
+			if (index++ == parentIndexes[parent])
+				child = readRoot(reader, parent + 1);
+			else
+				reader.skipValue();
+		}
+		reader.endArray();
+		
+		if (child == null)
+			return Root.error("Array index out of bounds: "+parentIndexes[parent]);
+		return child;
+	}
+	
+	// Index of the first parent from the given one on with this name, or -1
+	//
+	private int findParent (String name, int parent) {
+		for (int i = parent; i < parents.length; i++)
+			if (name.equals(parents[i]))
+				return i;
+		return -1;
+	}
+	
+	private void readResults (JsonReader reader, Root root) throws IOException {
+		root.results = null;
+		root.resultsError = null;
+		if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+			reader.skipValue();
+			root.resultsError = "Expected an array of results: "+resultsArray;
+			return;
+		}
+		
+		List<String> results = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+				reader.skipValue();
+				root.resultsError = "Expected a result object in: "+resultsArray;
+				continue;
+			}
+			
+			String url = null;
+			String snippet = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals(urlElement))
+					url = readString(reader);
+				else if (name.equals(snippetElement))
+					snippet = readString(reader);
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+			
+			if (url == null || snippet == null)
+				root.resultsError = "Missing url or snippet in result: "+urlElement+", "+snippetElement;
+			results.add(url);
+			results.add(snippet);
+		}
+		reader.endArray();
+		
+		root.results = results;
+	}
+	
+	private void readInformation (JsonReader reader, Root root) throws IOException {
+		root.information = true;
+		root.informationError = null;
+		root.totalResults = null;
+		root.totalResultsError = null;
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			root.informationError = "Expected an object: "+informationContainer;
+			return;
+		}
+		
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals(totalResultsElement))
+				readTotalResults(reader, root);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+	}
+	
+	// Total results may be a number or a string holding one
+	//
+	private void readTotalResults (JsonReader reader, Root root) throws IOException {
+		root.totalResults = null;
+		root.totalResultsError = null;
+		
+		JsonToken token = reader.peek();
+		String value = readString(reader);
+		if (value == null || token == JsonToken.BOOLEAN) {
+			root.totalResultsError = "Expected a number: "+totalResultsElement;
+			return;
+		}
+		try {
+			if (token == JsonToken.NUMBER)
+				root.totalResults = new BigDecimal(value).longValue();
+			else
+				root.totalResults = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			root.totalResultsError = "Expected a number: "+totalResultsElement+" = "+value;
+		}
+	}
+	
+	// A primitive as a string, or null after skipping anything else
+	//
+	private static String readString (JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+			case STRING		:
+			case NUMBER		:	return reader.nextString();
+			case BOOLEAN	:	return String.valueOf(reader.nextBoolean());
+		}
+		reader.skipValue();
+		return null;
+	}
+}
@@ -55,10 +55,18 @@ public class Main {
 						case 's': processor.setMinimumScore(Integer.parseInt(args[i].substring(3))); break;
 						case 'v': processor.setScoreByRarity(false); break;
 						case 'g': processor.setScoreGapsByRarity(true); break;						
-						case 'm': processor.setScoringMethod(args[i].substring(3)); break;								
-						case 'o': engine.setSnippetSearch(false); break;						
+						case 'm': processor.setScoringMethod(args[i].substring(3)); break;
+						case 'p':
+							processor.setParallelism(Integer.parseInt(args[i].substring(3)));
+							engine.setParallelism(Integer.parseInt(args[i].substring(3)));
+							break;								
+						case 'o': engine.setSnippetSearch(false); break;
+						case 'k': engine.setKeepRawSerps(true); break;
+						case 'u': engine.setUseQueryCache(true); break;						
 						case 'c': engine.setMaxConnections(Integer.parseInt(args[i].substring(3))); break;
 						case 'r': engine.setMaxRetries(Integer.parseInt(args[i].substring(3))); break;
+						case 'a': engine.setWaveSize(Integer.parseInt(args[i].substring(3))); break;
+						case 'b': engine.setQueryPlanner(new QueryPlanner(Integer.parseInt(args[i].substring(3)))); break;
 						case 'e':
 							String e = args[i].substring(3);
 							switch (e.toLowerCase()) {
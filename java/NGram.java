@@ -7,10 +7,20 @@
 package citeunseen;
 
 public class NGram extends SourceFragment {
+	private final int id;
 
 	// Constructors
 	//
 	public NGram (String ngram, SourceText sourceText) {
+		this(ngram, -1, sourceText);
+	}
+	public NGram (String ngram, int id, SourceText sourceText) {
 		super(ngram, sourceText);
+		this.id = id;
+	}
+	
+	// The id of this ngram in its source text dictionary
+	public int id () {
+		return id;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+/**
+ *  @author Brian St. Marie
+ *  stmarie@fas.harvard.edu
+ *
+ */
+ 
+package citeunseen;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.*;
+import org.apache.lucene.analysis.tokenattributes.*;
+
+// Finds a document's ngrams in any other text, in one pass over its words.
+//
+// The text is tokenized with the document's own analyzer, which already
+// reuses its tokenizer on each thread. Rather than building every shingle
+// as a string, each word becomes the id the document gives it, and each
+// window of n word ids is looked up by a rolling hash (Rabin-Karp over
+// word ids), so the work grows with the length of the text whatever n is.
+// A word the document never uses can't be part of a match, so it just
+// restarts the window.
+//
+// Built once per document, then safe to share between threads.
+//
+public class NGramMatcher {
+	private static final long BASE = 1000003;		// rolling hash multiplier
+	
+	private final SourceText sourceText;
+	private final int n;
+	private final long highPower;					// BASE^(n-1), to roll the oldest word out
+	
+	private final CharArrayMap<Integer> wordIds;	// every word in the document
+	private final int[] words;						// word ids of each ngram, n per ngram
+	private final Map<Long, int[]> ngramsByHash;	// ngram ids with each hash
+
+	// Constructor
+	public NGramMatcher (SourceText sourceText) {
+		this.sourceText = sourceText;
+		this.n = Math.max(1, sourceText.getN());
+		
+		long power = 1;
+		for (int i = 1; i < n; i++)
+			power *= BASE;
+		highPower = power;
+		
+		int size = sourceText.size();
+		wordIds = new CharArrayMap<>(size, false);
+		words = new int[size * n];
+		ngramsByHash = new HashMap<>(size * 2);
+		
+		for (int id = 0; id < size; id++) {
+			String[] terms = sourceText.term(id).split(" ");
+			if (terms.length != n)
+				continue;							// not a plain shingle, can't be matched by words
+				
+			long hash = 0;
+			for (int i = 0; i < n; i++) {
+				Integer word = wordIds.get(terms[i]);
+				if (word == null) {
+					word = wordIds.size();
+					wordIds.put(terms[i], word);
+				}
+				words[id * n + i] = word;
+				hash = hash * BASE + word + 1;
+			}
+			
+			int[] ids = ngramsByHash.get(hash);
+			if (ids == null)
+				ids = new int[] { id };
+			else {
+				ids = Arrays.copyOf(ids, ids.length + 1);
+				ids[ids.length - 1] = id;
+			}
+			ngramsByHash.put(hash, ids);
+		}
+	}
+	
+	// Every match in the text, in order, as the id of the document's ngram
+	// and the position of the match in the text, counted in ngrams
+	//
+	public Matches scan (String text) {
+		Matches matches = new Matches();
+		int[] window = new int[n];					// the last n word ids, round robin
+		int run = 0;								// known words in a row
+		int position = 0;							// words read so far
+		long hash = 0;
+		
+		try (TokenStream stream = sourceText.getAnalyzer().tokenStream(null, new StringReader(text))) {
+			CharTermAttribute charAttrib = stream.getAttribute(CharTermAttribute.class);
+			
+			stream.reset();
+			while (stream.incrementToken()) {
+				position++;
+				Integer word = wordIds.get(charAttrib.buffer(), 0, charAttrib.length());
+				if (word == null) {
+					run = 0;
+					hash = 0;
+					continue;
+				}
+				
+				int slot = run % n;
+				if (run >= n)
+					hash -= (window[slot] + 1) * highPower;
+				hash = hash * BASE + word + 1;
+				window[slot] = word;
+				run++;
+				
+				if (run >= n) {
+					int[] ids = ngramsByHash.get(hash);
+					if (ids != null) for (int id : ids)
+						if (matches(id, window, run))
+							matches.add(id, position - n);
+				}
+			}
+			stream.end();
+		} catch (IOException e) { e.printStackTrace(); }	// this will never happen since it's a StringReader...
+		
+		return matches;
+	}
+	
+	// Check the window really holds this ngram, not just one with the same hash
+	//
+	private boolean matches (int id, int[] window, int run) {
+		for (int i = 0; i < n; i++)
+			if (words[id * n + i] != window[(run - n + i) % n])
+				return false;
+		return true;
+	}
+	
+	//===========================================================//
+	// Matches found by a scan
+	//===========================================================//
+	
+	public static class Matches {
+		private int[] ids = new int[16];
+		private int[] positions = new int[16];
+		private int size = 0;
+		
+		private void add (int id, int position) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				positions = Arrays.copyOf(positions, size * 2);
+			}
+			ids[size] = id;
+			positions[size] = position;
+			size++;
+		}
+		
+		public int size () {
+			return size;
+		}
+		
+		public int id (int i) {
+			return ids[i];
+		}
+		
+		public int position (int i) {
+			return positions[i];
+		}
+		
+		// The distinct ngram ids matched
+		public BitSet ids () {
+			BitSet distinct = new BitSet();
+			for (int i = 0; i < size; i++)
+				distinct.set(ids[i]);
+			return distinct;
+		}
+	}
+}
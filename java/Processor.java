@@ -8,6 +8,7 @@ package citeunseen;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.math.*;
 
 import org.apache.lucene.analysis.tokenattributes.*;
@@ -15,14 +16,16 @@ import org.apache.lucene.analysis.tokenattributes.*;
 public class Processor {
 	private int minScore = 8;				// minimum score for URL match sequences to be considered significant/displayed to user
 	private boolean scoreByRarity = true;	// whether to weight the worth of matches by the number of results each returned in the search
-	private boolean weightGaps = false;		// flat score for gaps, rather than log probability...this helps performance A LOT	
+	private boolean weightGaps = false;		// flat score for gaps, rather than log probability	
 	private String scoringMethod = "idf";	// default scoring method
+	private RarityScorer scorer = RarityScorer.forMethod(scoringMethod);
 	private double weightFactor = 1.0;		// weighting factor
 	private boolean disabled = false;		// if advanced processing is enabled or disabled
+	private int parallelism = 1;			// number of threads for finding sequences, 1 to run in order
 
-	// Remember the search results once processing has begun
-	// This is only for later scoring
-	private Map<String, SearchResult> searchResults;
+	// Remember the rarity score of the ngram at each position once
+	// processing has begun. This is only for later scoring
+	private double[] rarityScores;
 	
 	// Factory method?
 	//
@@ -38,8 +41,9 @@ public class Processor {
 		this.setMinimumScore(oldp.minimumScore());
 		this.setScoreByRarity(oldp.scoreByRarity());
 		this.setScoreGapsByRarity(oldp.scoreGapsByRarity());
-		this.setScoringMethod(oldp.scoringMethod());
+		this.setScorer(oldp.scorer());
 		this.setWeightFactor(oldp.scoringWeightFactor());
+		this.setParallelism(oldp.parallelism());
 		if (oldp.disabled()) this.disable();
 	}
 
@@ -93,13 +97,28 @@ public class Processor {
 		return weightGaps;
 	}
 	
+	// Set the scoring method by name, or with a custom scorer, whose
+	// method is then the standard one it is or "custom"
+	//
 	public Processor setScoringMethod (String method) {
 		this.scoringMethod = method;
+		this.scorer = RarityScorer.forMethod(method);
+		return this;
+	}
+	public Processor setScorer (RarityScorer scorer) {
+		this.scorer = scorer;
+		this.scoringMethod = "custom";
+		for (String method : new String[] {"idf", "log", "pow", "linear"})
+			if (RarityScorer.forMethod(method) == scorer)
+				this.scoringMethod = method;
 		return this;
 	}
 	public String scoringMethod () {
 		return scoringMethod;
 	}
+	public RarityScorer scorer () {
+		return scorer;
+	}
 	
 	public Processor setWeightFactor (double weightFactor) {
 		this.weightFactor = weightFactor;
@@ -109,6 +128,16 @@ public class Processor {
 		return weightFactor;
 	}
 
+	// Set/get the number of threads used to analyze URLs
+	//
+	public Processor setParallelism (int parallelism) {
+		this.parallelism = parallelism;
+		return this;
+	}
+	public int parallelism () {
+		return parallelism;
+	}
+
 	// Settings for enabling/disabling advanced processing
 	//
 	public Processor enable () {
@@ -128,9 +157,9 @@ public class Processor {
 	// Return the a map between document positions and sequences.
 	//===========================================================//
 	public Set<SourceFragment> process (Map<String, SearchResult> searchResults, SourceText sourceText) {
-		// Remember results for scoreNGram access
+		// Score every position once, for scoreNGram access
 		if (scoreByRarity && !disabled)
-			this.searchResults = searchResults;
+			this.rarityScores = scoreNGrams(searchResults, sourceText);
 		
 		Set<SourceFragment> fragments = new HashSet<>();	
 		Set<URLResult> urlResults = getByURL(searchResults, sourceText);
@@ -139,35 +168,187 @@ public class Processor {
 			return fragments;
 		}
 		Set<Sequence> sequences = findSequences(urlResults);
-		this.searchResults = null; // release memory
+		this.rarityScores = null; // release memory
 		fragments.addAll(sequences);
 		
 		return fragments;
 	}
 	//===========================================================//	
 	
+	//===========================================================//	
+	// Score our search results once, for any number of minimum
+	// scores. Everything but the minimum score must stay the same,
+	// see scoringSettings.
+	//===========================================================//
+	public ScoredCandidates score (Map<String, SearchResult> searchResults, SourceText sourceText) {
+		if (scoreByRarity && !disabled)
+			this.rarityScores = scoreNGrams(searchResults, sourceText);
+		
+		List<URLResult> urlResults = new ArrayList<>(getByURL(searchResults, sourceText));
+		List<NumericSequence> sequences = null;
+		if (!disabled) {
+			sequences = new ArrayList<>(urlResults.size());
+			NumericSequence fragmentByWords = new NumericSequence();
+			for (URLResult urlResult : urlResults) {
+				buildNumericSequence(urlResult, fragmentByWords);
+				NumericSequence sequence = fragmentByWords.copy();
+				sequence.scanAll();
+				sequences.add(sequence);
+			}
+		}
+		this.rarityScores = null; // release memory
+		
+		return new ScoredCandidates(sourceText, urlResults, sequences);
+	}
+	
+	// Every setting that changes scoring, which is everything but the
+	// minimum score. Processors with equal settings can share their
+	// ScoredCandidates. The scorer is compared as an instance, so two
+	// scorers of one class with different parameters never collide.
+	//
+	public List<Object> scoringSettings () {
+		return Arrays.<Object>asList(scoreByRarity, weightGaps, scorer, weightFactor, disabled);
+	}
+	
+	// The scored URLs for a document, ready to be cut at any minimum score
+	// Once built these are never changed, so they can be shared between threads
+	//
+	public static class ScoredCandidates {
+		private final SourceText sourceText;
+		private final List<URLResult> urlResults;
+		private final List<NumericSequence> sequences;	// null if processing was disabled
+		
+		private ScoredCandidates (SourceText sourceText, List<URLResult> urlResults, List<NumericSequence> sequences) {
+			this.sourceText = sourceText;
+			this.urlResults = urlResults;
+			this.sequences = sequences;
+		}
+		
+		// Same as Processor.process with the given minimum score
+		//
+		public Set<SourceFragment> threshold (int minScore) {
+			Set<SourceFragment> fragments = new HashSet<>();
+			if (sequences == null) {
+				fragments.addAll(urlResults);
+				return fragments;
+			}
+			
+			List<URLResult> matched = new ArrayList<>(urlResults.size());
+			List<Set<Sequence>> subsequencesList = new ArrayList<>(urlResults.size());
+			for (int i = 0; i < urlResults.size(); i++) {
+				URLResult urlResult = urlResults.get(i);
+				Set<Sequence> subsequences = sequences.get(i).findSubsequences(sourceText, minScore);
+				
+				// Each minimum gets its own copy of any URL it matches,
+				// so matches from different minimums never mix
+				if (subsequences.size() > 0) {
+					URLResult copy = new URLResult(urlResult.toString(), sourceText);
+					copy.add(urlResult.positions());
+					urlResult = copy;
+				}
+				matched.add(urlResult);
+				subsequencesList.add(subsequences);
+			}
+			fragments.addAll(mergeSubsequences(matched, subsequencesList));
+			
+			return fragments;
+		}
+	}
+	
+	// Build a table of the rarity score at each position in the document
+	// Each unique ngram is only scored once, so matches and gaps
+	// never have to look up a result or take a log again
+	//
+	private double[] scoreNGrams (Map<String, SearchResult> searchResults, SourceText sourceText) {
+		// Collect the result counts for every ngram in the document
+		//
+		int[] ids = new int[searchResults.size()];
+		long[] totalResults = new long[searchResults.size()];
+		long indexSize = 0;
+		int count = 0;
+		for (Map.Entry<String, SearchResult> entry : searchResults.entrySet()) {
+			int id = sourceText.id(entry.getKey());
+			if (id < 0) continue;
+			
+			SearchResult searchResult = entry.getValue();
+			ids[count] = id;
+			totalResults[count] = searchResult.totalResults();
+			indexSize = searchResult.indexSize();			// all results come from the same engine
+			count++;
+		}
+		
+		// And score them all at once
+		//
+		double[] values = new double[count];
+		scorer.score(Arrays.copyOf(totalResults, count), indexSize, values);
+		
+		double[] scoresById = new double[sourceText.size()];
+		Arrays.fill(scoresById, 1.0);						// default score per match
+		for (int i = 0; i < count; i++)
+			scoresById[ids[i]] = values[i];
+		
+		double[] scores = new double[sourceText.length()];
+		for (int position = 0; position < scores.length; position++)
+			scores[position] = scoresById[sourceText.idAt(position)];
+		return scores;
+	}
+	
 	//===========================================================//	
 	// Take our search results and create one big master list of 
 	// unique URLs and the ngrams in the document which matched 
 	// with that URL.
 	//
+	// Each URL is given an id the first time it is seen, and every
+	// url/ngram match is packed as (url id, ngram id) into a long.
+	// Sorting the pairs groups them by URL, so each URLResult is built
+	// once, in one pass, from its ngrams' positions.
+	//
 	private Set<URLResult> getByURL (Map<String, SearchResult> searchResults, SourceText sourceText) {
-		Map<String, URLResult> urlResults = new HashMap<>();
+		Map<String, Integer> urlIds = new HashMap<>();
+		List<String> urls = new ArrayList<>();
+		long[] pairs = new long[1024];
+		int size = 0;
+		
 		for (Map.Entry<String, SearchResult> entry : searchResults.entrySet()) {
-			String ngram = entry.getKey();
+			int id = sourceText.id(entry.getKey());
 			SearchResult searchResult = entry.getValue();
 			
-			Set<Integer> positions = sourceText.locate(ngram);
 			for (String url : searchResult.urls()) {
-				URLResult urlResult = urlResults.get(url);
-				if (urlResult == null) {
-					urlResult = new URLResult(url, sourceText);
-					urlResults.put(url, urlResult);
+				Integer urlId = urlIds.get(url);
+				if (urlId == null) {
+					urlId = urls.size();
+					urlIds.put(url, urlId);
+					urls.add(url);
 				}
-				urlResult.add(positions);
+				if (id < 0) continue;				// not in this document, but we still keep the url
+				
+				if (size == pairs.length)
+					pairs = Arrays.copyOf(pairs, size * 2);
+				pairs[size++] = ((long)urlId << 32) | id;
+			}
+		}
+		Arrays.sort(pairs, 0, size);
+		
+		// Walk the sorted pairs, filling in each URL's positions
+		//
+		URLResult[] urlResults = new URLResult[urls.size()];
+		int p = 0;
+		for (int urlId = 0; urlId < urlResults.length; urlId++) {
+			URLResult urlResult = new URLResult(urls.get(urlId), sourceText);
+			while (p < size && (int)(pairs[p] >>> 32) == urlId) {
+				urlResult.add(sourceText.locate((int)pairs[p]));
+				p++;
 			}
+			urlResults[urlId] = urlResult;
 		}
-		return new HashSet<URLResult>(urlResults.values());
+		
+		// Keep the same order as a map of url to URLResult would have
+		//
+		List<URLResult> urlResultsList = new ArrayList<>(urlResults.length);
+		for (Integer urlId : urlIds.values())
+			urlResultsList.add(urlResults[urlId]);
+		
+		return new HashSet<URLResult>(urlResultsList);
 	}
 	//===========================================================//		
 	
@@ -179,11 +360,24 @@ public class Processor {
 		return findSequences(Collections.singleton(fragment));
 	}
 	public Set<Sequence> findSequences (Set<? extends SourceFragment> fragments) {
+		List<SourceFragment> fragmentList = new ArrayList<>(fragments);
+		double bestValue = bestMatchValue(fragmentList);
+		List<Set<Sequence>> subsequencesList;
+		if (parallelism > 1 && fragmentList.size() > parallelism)
+				subsequencesList = findSubsequencesInParallel(fragmentList, bestValue);
+		else	subsequencesList = new SequenceFinder(fragmentList, bestValue).call();
+
+		return mergeSubsequences(fragmentList, subsequencesList);
+	}	
+	
+	// Merge in the original order so the first match of each sequence
+	// is always the one kept, however the work was split up
+	//
+	private static Set<Sequence> mergeSubsequences (List<? extends SourceFragment> fragments, List<Set<Sequence>> subsequencesList) {
 		Map<Sequence, Sequence> subSequences = new HashMap<>();
-		
-		for (SourceFragment fragment : fragments) {
-			List<Sequence> fragmentByWords = buildNumericSequence(fragment);
-			Set<Sequence> fragmentSubsequences = findSubsequences(fragmentByWords);
+		for (int i = 0; i < fragments.size(); i++) {
+			SourceFragment fragment = fragments.get(i);
+			Set<Sequence> fragmentSubsequences = subsequencesList.get(i);
 						
 			for (Sequence fragmentSubsequence : fragmentSubsequences) {
 				Sequence subSequence = subSequences.get(fragmentSubsequence);
@@ -196,120 +390,302 @@ public class Processor {
 			}
 		}
 		return subSequences.keySet();
-	}	
+	}
+	
+	// Each URL is independent, so split them into chunks across a pool
+	// and put the results back together in order
+	//
+	private List<Set<Sequence>> findSubsequencesInParallel (List<SourceFragment> fragments, double bestValue) {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<List<Set<Sequence>>>> futures = new ArrayList<>();
+		
+		int total = fragments.size();
+		int chunk = Math.max(1, total / (parallelism * 4));			// a few chunks per thread to even out the load
+		for (int start = 0; start < total; start += chunk) {
+			int end = Math.min(start + chunk, total);
+			futures.add(executor.submit(new SequenceFinder(fragments.subList(start, end), bestValue)));
+		}
+		executor.shutdown();
+		
+		List<Set<Sequence>> subsequencesList = new ArrayList<>(total);
+		try {
+			for (Future<List<Set<Sequence>>> future : futures)
+				subsequencesList.addAll(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Sequence search failed: "+e.getMessage(), e);
+		}
+		return subsequencesList;
+	}
+	
+	// Find the subsequences for a list of fragments, in order
+	// Each finder has its own numeric sequence to reuse between fragments
+	//
+	private class SequenceFinder implements Callable<List<Set<Sequence>>> {
+		private final List<SourceFragment> fragments;
+		private final double bestValue;
+		private final NumericSequence fragmentByWords = new NumericSequence();
+		
+		SequenceFinder (List<SourceFragment> fragments, double bestValue) {
+			this.fragments = fragments;
+			this.bestValue = bestValue;
+		}
+		
+		@Override
+		public List<Set<Sequence>> call () {
+			List<Set<Sequence>> subsequencesList = new ArrayList<>(fragments.size());
+			for (SourceFragment fragment : fragments) {
+				if (cannotReachMinimum(fragment, bestValue)) {		// skip the long tail of hopeless URLs
+					subsequencesList.add(Collections.<Sequence>emptySet());
+					continue;
+				}
+				buildNumericSequence(fragment, fragmentByWords);
+				subsequencesList.add(fragmentByWords.findSubsequences(fragment.getSourceText(), minScore));
+			}
+			return subsequencesList;
+		}
+	}
+	
+	// The most any single match can be worth in this document
+	//
+	private double bestMatchValue (List<SourceFragment> fragments) {
+		if (!scoreByRarity)
+			return weightFactor;
+		
+		double best = Double.NEGATIVE_INFINITY;
+		if (fragments.size() > 0) {
+			SourceText sourceText = fragments.get(0).getSourceText();
+			for (int position = 0; position < sourceText.length(); position++)
+				best = Math.max(best, scoreNGram(position) * weightFactor);
+		}
+		return best;
+	}
+	
+	// Check if a fragment could never score over our minimum
+	// At best, every match is worth the best value and is its own run,
+	// earning n-1 on top, with no gaps at all. The small allowance
+	// keeps rounding in the real sums from ever being cut off.
+	//
+	private boolean cannotReachMinimum (SourceFragment fragment, double bestValue) {
+		int n = fragment.getSourceText().getN();
+		double upperBound = fragment.size() * Math.max(0, bestValue + n-1);
+		return upperBound + 1e-6 < minScore;
+	}
+	
+	// A word value sequence held in primitive arrays
+	// Each entry is a run of consecutive matches (with the first and last
+	// position of the run) or a gap between runs (with no positions)
+	//
+	// Scanning from any entry gives the same best score no matter what
+	// our minimum is, so each scan is remembered and only the final
+	// cut against the minimum has to be redone for a new minimum
+	//
+	private static class NumericSequence {
+		private double[] scores = new double[64];
+		private int[] starts = new int[64];
+		private int[] ends = new int[64];
+		private int size = 0;
+		
+		// Results of scanning from each entry
+		private double[] bests = new double[64];		// best score reached
+		private int[] maxEnds = new int[64];			// entry where it was reached, or -1 for none
+		private int[] stops = new int[64];				// entry where the scan stopped
+		private boolean[] scanned = new boolean[64];
+		
+		void clear () {
+			size = 0;
+		}
+		
+		int size () {
+			return size;
+		}
+		
+		double score (int i) {
+			return scores[i];
+		}
+		
+		// Add a new run of matches, or a gap if start > end
+		void add (double score, int start, int end) {
+			if (size == scores.length)
+				resize(size * 2);
+			scores[size] = score;
+			starts[size] = start;
+			ends[size] = end;
+			scanned[size] = false;
+			size++;
+		}
+		
+		void addGap (double score) {
+			add(score, 0, -1);
+		}
+		
+		// Extend the last run with a consecutive match
+		void extend (double score, int position) {
+			scores[size-1] += score;
+			ends[size-1] = position;
+		}
+		
+		void addToLast (double score) {
+			scores[size-1] += score;
+		}
+		
+		private void resize (int length) {
+			scores = Arrays.copyOf(scores, length);
+			starts = Arrays.copyOf(starts, length);
+			ends = Arrays.copyOf(ends, length);
+			bests = Arrays.copyOf(bests, length);
+			maxEnds = Arrays.copyOf(maxEnds, length);
+			stops = Arrays.copyOf(stops, length);
+			scanned = Arrays.copyOf(scanned, length);
+		}
+		
+		// A trimmed copy, for keeping once the original is reused
+		NumericSequence copy () {
+			NumericSequence copy = new NumericSequence();
+			copy.size = size;
+			copy.scores = scores;
+			copy.starts = starts;
+			copy.ends = ends;
+			copy.bests = bests;
+			copy.maxEnds = maxEnds;
+			copy.stops = stops;
+			copy.scanned = scanned;
+			copy.resize(size);
+			return copy;
+		}
+		
+		// Add up the scores from start until the total drops to zero
+		// or the sequence is done, remembering the best total on the way
+		//
+		private void scan (int start) {
+			double current = 0;
+			double best = 0;
+			int end = -1;
+			int stop = size-1;
+			for (int i = start; i < size; i++) {
+				current += scores[i];
+				
+				if (current > best) {							// If we have a new max
+					best = current;								//  remember the score
+					end = i;									//  and where the sequence ends
+				}
+				if (current <= 0) {								// If current drops below zero, stop here
+					stop = i;
+					break;
+				}
+			}
+			bests[start] = best;
+			maxEnds[start] = end;
+			stops[start] = stop;
+			scanned[start] = true;
+		}
+		
+		// Scan from every entry any minimum could lead to, so later
+		// calls to findSubsequences never write to this sequence
+		//
+		void scanAll () {
+			Deque<Integer> pending = new ArrayDeque<>();
+			if (size > 0) pending.push(0);
+			while (!pending.isEmpty()) {
+				int start = pending.pop();
+				if (scanned[start]) continue;
+				scan(start);
+				if (maxEnds[start] >= 0 && maxEnds[start]+1 < size)
+					pending.push(maxEnds[start]+1);				// where we go when this sequence is kept
+				if (stops[start]+1 < size)
+					pending.push(stops[start]+1);				// where we go when it isn't
+			}
+		}
+		
+		// Find all the subsequences scoring over our minimum
+		// Only those are built as Sequence objects
+		//
+		Set<Sequence> findSubsequences (SourceText sourceText, int minScore) {
+			Set<Sequence> sequences = new HashSet<>();
+			int start = 0;
+			while (start < size) {
+				if (!scanned[start])
+					scan(start);
+				
+				int end = maxEnds[start];
+				if (end >= 0 && bests[start] > minScore) {		// if this sequence's score is greater than our minimum
+					sequences.add(toSequence(sourceText, start, end, bests[start]));	// add it to the list of sequences
+					start = end+1;								//  and go on from where this sequence ended
+				} else start = stops[start]+1;
+			}
+			return sequences;
+		}
+		
+		// Create a Sequence from all the positive runs from start to end
+		private Sequence toSequence (SourceText sourceText, int start, int end, double score) {
+			Sequence sequence = new Sequence(sourceText);
+			for (int i = start; i <= end; i++) {
+				if (scores[i] > 0)
+					sequence.addRange(starts[i], ends[i]);
+			}
+			sequence.setScore(score);
+			return sequence;
+		}
+	}
 	
 	// Build a word value sequence from the matches of a particular URL
-	// For this, each Sequence object is actually just a value of the 
-	// number of consecutive words and the positions
+	// For this, each entry is just a value of the number of 
+	// consecutive words and the positions
 	//
-	private List<Sequence> buildNumericSequence (SourceFragment fragment) {
+	private void buildNumericSequence (SourceFragment fragment, NumericSequence seq) {
 		SourceText sourceText = fragment.getSourceText();
-		Set<Integer> positions = fragment.positionsInOrder();
-		List<Sequence> seq = new ArrayList<>();
+		BitSet positions = fragment.positions();
+		seq.clear();
 		
 		// Build word sequence array
 		// Positives are number of matches in a row, negatives are number of mismatches in a row
 		//
-		Sequence sub = new Sequence(sourceText);
 		int n = sourceText.getN();
-		int p = 0;
 		int last = 0;
-		for (Integer i : positions) {
-			String ngram = sourceText.get(i);
-			double v = scoreNGram(ngram) * weightFactor;
+		for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i+1)) {
+			double v = scoreNGram(i) * weightFactor;
 			
 			int gap = i - last - 1;					// gap size between this position and the last position
-			p = seq.size() - 1;						// set to previous position		
 			if (seq.size() == 0) {					// if we're just starting, 
-				sub.add(v, i);						//  add our value for our first match
-				seq.add(sub);
+				seq.add(v, i, i);					//  add our value for our first match
 			} else if (gap == 0) {					// if no gap, this is a consecutive match
-				sub = seq.get(p);					//  first, get the last value
-				sub.add(v, i);						//	add this value to the sequence
+				seq.extend(v, i);					//	add this value to the last run
 			} else {								// not consecutive
-				sub = seq.get(p);
-				sub.addToScore(n-1);				//  so we add n-1 to the previous location in seq to approximate number of words in that subseq				
-				sub = new Sequence(sourceText);		//  and start a new sequence for the gap
+				seq.addToLast(n-1);					//  so we add n-1 to the previous location in seq to approximate number of words in that subseq				
 
 				double penalty = 0;
 				if (weightGaps) {									// if we want to weight gaps
 					while (gap > 0) {								// now, fill in the gaps for all the missing ngrams between last and this one
-						String missed = sourceText.get(last+gap);	// retrieve the ngram at this position
-						penalty -= scoreNGram(missed);				// get the penalty for missing this ngram
+						penalty -= scoreNGram(last+gap);			// get the penalty for missing the ngram at this position
 						gap--;
 					}
-				} else penalty = -1 * gap;							// logs are VERY expensive, so maybe we skip that
+				} else penalty = -1 * gap;							// or just a flat penalty for each missing ngram
 				penalty = penalty > -1*n ? 0 : penalty + n-1;		// ensure a penalty never ends up positive
-				sub.addToScore(penalty);				
-				seq.add(sub);
+				seq.addGap(penalty);				
 				
-				sub = new Sequence(sourceText);		//  finally add a positive to start a new matching sequence at this position
-				sub.add(v, i);
-				seq.add(sub);
+				seq.add(v, i, i);					//  finally add a positive to start a new matching run at this position
 			}
 			last = i;
 		}					
-		if (seq.size() > 0) {					// if we have a sequence of any size
-			p = seq.size() - 1;					//  set our position to the last position of the sequence
-			seq.get(p).addToScore(n-1);			//  add n-1 to our last subseq of matches to approximate number of words
-		}
-		return seq;
+		if (seq.size() > 0)						// if we have a sequence of any size
+			seq.addToLast(n-1);					//  add n-1 to our last run of matches to approximate number of words
 	}
 	
 	// use the total number of results for this ngram to scale it
 	//  the more results, the less likely we care about this match, so it should count for less
 	//  the fewer results, the more interesting this match is, so it should count for more
 	//
-	private double scoreNGram (String ngram) {
+	// These are all precomputed by scoreNGrams, so this is just a lookup by position
+	//
+	private double scoreNGram (int position) {
 		// default score per match	
 		double v = 1.0;
 		
-		if (scoreByRarity) {
-			SearchResult searchResult = searchResults.get(ngram);
-			if (searchResult != null)
-				v = searchResult.getRelativeValue(scoringMethod);		
-		}	
+		if (scoreByRarity)
+			v = rarityScores[position];
 		return v;
 	}	
 
-	// Find all the subsequences in a sequence
-	//
-	private Set<Sequence> findSubsequences (List<Sequence> values) {
-		double current = 0;
-		double score = 0;
-		int end = 0;
-		
-		SourceText source = values.get(0).getSourceText();
-		Sequence sequence = new Sequence(source);
-		Set<Integer> positions = new HashSet<>();
-		Set<Sequence> sequences = new HashSet<>();
-		for (int i = 0; i < values.size(); i++) {
-			Sequence value = values.get(i);
-			current += value.score();
-			
-			if (value.score() > 0)							// If this is a positive value
-				positions.addAll(value.positions());		//  remember all the positions
-				
-			if (current > sequence.score()) {				// If we have a new max
-				sequence.add(positions);					//  add all the positions
-				sequence.setScore(current);					//  and set the current score
-				positions = new HashSet<>();				//  then start the positions anew
-				end = i;									//  and start the next sequence at the end of this one
-			}
-			
-			if (current <= 0 || i == values.size()-1) {		// If current drops below zero or the array is done
-				if (sequence.score() > minScore) {			//	if this sequenc'es score is greater than our minimum
-					sequences.add(sequence);				//   add it to the list of sequences
-					i = end;								//   and go back to where this sequence ended
-				}
-				current = 0;
-				sequence = new Sequence(source);
-				positions = new HashSet<>();
-			}
-		}
-		return sequences;
-	}
-
 	/*
 	private Set<Sequence> findSubsequences (List<Sequence> seq) {
 		double next = 0;
@@ -0,0 +1,289 @@
+/**
+ *  @author Brian St. Marie
+ *  stmarie@fas.harvard.edu
+ *
+ */
+ 
+package citeunseen;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Search results by ngram, shared by every document in the process and
+// kept between runs, so an ngram searched for one paper isn't searched
+// again when the next paper quotes the same text. There's one per engine,
+// each in its own SerpCache file under the cache folder.
+//
+// Results expire timeToLive after they were searched, and past maxEntries
+// the least recently used are dropped. New results are appended to the
+// file, which is rewritten on loading once it holds twice as many
+// records as are still live.
+//
+// The file is read on a background thread the first time the cache is
+// used, without holding the cache's lock, so searches meanwhile just miss
+// rather than waiting. Results added before then are saved once it's read.
+//
+// A load never throws the file away. If it stops at a bad record, such
+// as the one a crash mid-append cuts short, the results read up to there
+// are kept, and the file is set aside as <file>.bad before they're saved
+// to a new one, in case the bad record wasn't the last.
+//
+public class QueryCache {
+	public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.DAYS.toMillis(30);
+	
+	// Enough results to fill a tenth of the heap, at ENTRY_BYTES each,
+	// which is on the high side for a parsed SERP and its snippets
+	private static final long ENTRY_BYTES = 8192;
+	public static final int DEFAULT_MAX_ENTRIES = (int)Math.max(1000, Math.min(1000000, Runtime.getRuntime().maxMemory() / 10 / ENTRY_BYTES));
+	
+	private static final ConcurrentMap<String, QueryCache> caches = new ConcurrentHashMap<>();
+	
+	private final String path;
+	private final String engine;
+	private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+	private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+	
+	private LinkedHashMap<String, Entry> entries = newEntries();
+	private final Map<String, SearchResult> unsaved = new LinkedHashMap<>();		// added before the file was read
+	private boolean loading = false;
+	private boolean loaded = false;
+	private boolean readOnly = false;				// file in the way, and it can't be moved
+	private boolean rewrite = false;				// file missing, set aside, or its tail cut short
+	
+	private static class Entry {
+		private final SearchResult result;
+		private final long time;
+		
+		Entry (SearchResult result, long time) {
+			this.result = result;
+			this.time = time;
+		}
+	}
+	
+	// The cache shared by every instance of an engine, keyed by engine name
+	//
+	public static QueryCache forEngine (String engine) {
+		QueryCache cache = caches.get(engine);
+		if (cache == null) {
+			QueryCache newCache = new QueryCache(Dev.cachePath()+"queries_"+engine+".dat", engine);
+			cache = caches.putIfAbsent(engine, newCache);
+			if (cache == null) {
+				cache = newCache;
+				cache.loadInBackground();
+			}
+		}
+		return cache;
+	}
+	
+	// Constructor
+	public QueryCache (String path, String engine) {
+		this.path = path;
+		this.engine = engine;
+	}
+	
+	// In access order, so the eldest entry is the least recently used
+	//
+	private LinkedHashMap<String, Entry> newEntries () {
+		return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	// Setters
+	public synchronized void setTimeToLive (long duration, TimeUnit unit) {
+		this.timeToLive = unit.toMillis(duration);
+	}
+	
+	public synchronized void setMaxEntries (int maxEntries) {
+		this.maxEntries = maxEntries;
+		Iterator<String> eldest = entries.keySet().iterator();
+		while (entries.size() > maxEntries) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+	
+	// Waits for the file to be read
+	public int size () {
+		load();
+		synchronized (this) {
+			return entries.size();
+		}
+	}
+	
+	// The cached result for an ngram, or null if it's missing or expired.
+	// Until the file is read, only results added since are found.
+	//
+	public synchronized SearchResult get (String ngram) {
+		String key = normalize(ngram);
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		if (expired(entry.time, System.currentTimeMillis())) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.result;
+	}
+	
+	// Add newly searched results, saving them to the end of the file
+	//
+	public synchronized void putAll (Map<String, SearchResult> results) {
+		if (results.isEmpty())
+			return;
+		
+		long now = System.currentTimeMillis();
+		Map<String, SearchResult> added = new LinkedHashMap<>();
+		for (Map.Entry<String, SearchResult> result : results.entrySet()) {
+			String key = normalize(result.getKey());
+			entries.put(key, new Entry(result.getValue(), now));
+			added.put(key, result.getValue());
+		}
+		
+		if (!loaded)
+			unsaved.putAll(added);
+		else if (rewrite)
+			save();
+		else
+			save(added, null, true);
+	}
+	
+	// Ngrams differing only in case or spacing are the same search
+	//
+	private static String normalize (String ngram) {
+		return ngram.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+	
+	private boolean expired (long time, long now) {
+		return now - time > timeToLive;
+	}
+	
+	// Start reading the file on a daemon thread
+	//
+	public void loadInBackground () {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				load();
+			}
+		}, "QueryCache-"+engine);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	// Read the file, or wait for the read already under way, skipping
+	// expired results without decoding them. The file is read without
+	// the lock, then merged with anything added meanwhile.
+	//
+	public void load () {
+		synchronized (this) {
+			if (loading) {
+				while (!loaded) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				return;
+			}
+			loading = true;
+		}
+		
+		LinkedHashMap<String, Entry> read = newEntries();
+		Timer timer = Timer.startNew();
+		long now = System.currentTimeMillis();
+		int records = 0;
+		boolean missing = !new File(path).exists();
+		
+		String failure = null;
+		if (!missing && SerpCache.version(path) != SerpCache.VERSION) {
+			failure = "not a version "+SerpCache.VERSION+" SERP cache";
+		} else if (!missing) {
+			try (SerpCache cache = new SerpCache(path)) {
+				if (!cache.engine().equals(engine)) {
+					failure = "cache is for "+cache.engine()+", not "+engine;
+				} else {
+					while (cache.next()) {
+						records++;
+						if (cache.type() == SerpCache.RESULT && !expired(cache.time(), now))
+							read.put(normalize(cache.ngram()), new Entry(cache.result(), cache.time()));
+					}
+				}
+			} catch (EOFException e) {
+				failure = "record "+(records + 1)+" cut short";
+			} catch (IOException | RuntimeException e) {
+				failure = e.getMessage();
+			}
+			Dev.out.println("Loaded "+read.size()+" results from query cache "+path+" ("+timer.s()+"s)");
+		}
+		
+		synchronized (this) {
+			read.putAll(entries);						// added while reading, so newer
+			entries = read;
+			
+			// keep what was read, and the file as it was
+			if (missing)
+				rewrite = true;
+			if (failure != null)
+				setAside(failure);
+			if (rewrite || records > 2 * entries.size())
+				save();
+			else if (!unsaved.isEmpty())
+				save(unsaved, null, true);			// searched just now
+			unsaved.clear();
+			
+			loaded = true;
+			notifyAll();
+		}
+	}
+	
+	// Move an unreadable file out of the way, so saving starts a new one
+	// rather than overwriting it
+	//
+	private void setAside (String reason) {
+		File file = new File(path);
+		File bad = new File(path+".bad");
+		bad.delete();
+		if (file.renameTo(bad)) {
+			Dev.out.println("Set aside query cache "+path+" as "+bad+": "+reason);
+			rewrite = true;
+		} else {
+			Dev.out.println("Can't read or set aside query cache "+path+", not saving to it: "+reason);
+			readOnly = true;
+		}
+	}
+	
+	// Rewrite the file with just the live results
+	//
+	private void save () {
+		Map<String, SearchResult> results = new LinkedHashMap<>();
+		Map<String, Long> times = new HashMap<>();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			results.put(entry.getKey(), entry.getValue().result);
+			times.put(entry.getKey(), entry.getValue().time);
+		}
+		if (save(results, times, false))
+			rewrite = false;
+	}
+	
+	private boolean save (Map<String, SearchResult> results, Map<String, Long> times, boolean append) {
+		if (readOnly)
+			return false;
+		try {
+			File parent = new File(path).getAbsoluteFile().getParentFile();
+			if (parent != null)
+				parent.mkdirs();
+			SerpCache.writeResults(results, times, path, engine, append);
+			return true;
+		} catch (IOException e) {
+			Dev.out.println("Failed saving query cache: "+e.getMessage());
+			return false;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ *  @author Brian St. Marie
+ *  stmarie@fas.harvard.edu
+ *
+ */
+ 
+package citeunseen;
+
+import java.util.*;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+
+// Decides which of a document's ngrams are worth a search, and in what order.
+//
+// Ngrams made up of stop words ("of the and") return billions of results
+// and never add to a sequence on their own, and snippets from neighbouring
+// searches usually credit them anyway. SearchEngine scores every ngram left
+// out of the plan as common. The rest are ranked by how rare their words
+// are within the document, so if there is a query budget, it goes to the
+// most distinctive ngrams first.
+//
+public class QueryPlanner {
+	private final CharArraySet stopWords = EnglishAnalyzer.ENGLISH_STOP_WORDS_SET;
+	
+	// configuration options, defaults
+	private double stopWordLimit = 1.0;		// skip ngrams with at least this fraction of stop words
+	private int budget = 0;					// most queries per document, 0 for no limit
+	
+	// Constructors
+	public QueryPlanner () {}
+	
+	public QueryPlanner (int budget) {
+		setBudget(budget);
+	}
+	
+	// Setters
+	public void setStopWordLimit (double stopWordLimit) {
+		this.stopWordLimit = stopWordLimit;
+	}
+	
+	public void setBudget (int budget) {
+		this.budget = Math.max(0, budget);
+	}
+	
+	// Getters
+	public int budget () {
+		return budget;
+	}
+	
+	// Plan the queries for a document, in the order they should be sent
+	//
+	public Set<String> plan (SourceText sourceText) {
+		Map<String, Integer> wordCounts = countWords(sourceText);
+		
+		final int size = sourceText.size();
+		final double[] priorities = new double[size];
+		List<Integer> candidates = new ArrayList<>();
+		
+		for (int id = 0; id < size; id++) {
+			String[] words = words(sourceText.term(id));
+			int stops = 0;
+			double priority = 0;
+			for (String word : words) {
+				if (stopWords.contains(word))
+					stops++;
+				else
+					priority += 1 / Math.log(Math.E + wordCounts.get(word));
+			}
+			if (stops >= stopWordLimit * words.length)
+				continue;
+				
+			priorities[id] = priority;
+			candidates.add(id);
+		}
+		
+		// Rarest first, then in order of first appearance
+		Collections.sort(candidates, new Comparator<Integer>() {
+			@Override
+			public int compare (Integer a, Integer b) {
+				int c = Double.compare(priorities[b], priorities[a]);
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		});
+		if (budget > 0 && candidates.size() > budget)
+			candidates = candidates.subList(0, budget);
+		
+		Set<String> queries = new LinkedHashSet<>();
+		for (int id : candidates)
+			queries.add(sourceText.term(id));
+		return queries;
+	}
+	
+	// How many times each word appears in the document
+	//
+	private static Map<String, Integer> countWords (SourceText sourceText) {
+		Map<String, Integer> counts = new HashMap<>();
+		int length = sourceText.length();
+		for (int position = 0; position < length; position++) {
+			String[] words = words(sourceText.get(position));
+			
+			// each word starts one ngram, except for the last ngram's tail
+			int last = (position == length - 1) ? words.length : 1;
+			for (int i = 0; i < last; i++) {
+				Integer count = counts.get(words[i]);
+				counts.put(words[i], count == null ? 1 : count + 1);
+			}
+		}
+		return counts;
+	}
+	
+	private static String[] words (String ngram) {
+		return ngram.split(" ");
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ *  @author Brian St. Marie
+ *  stmarie@fas.harvard.edu
+ *
+ */
+ 
+package citeunseen;
+
+// Scores how interesting a match is from the number of results its
+// search returned, relative to the size of the engine's index.
+// The fewer the results, the rarer the ngram, and the more it is worth.
+//
+// Scorers are picked once, so scoring a document is a tight loop
+// over an array of result counts with a single implementation.
+//
+// Processors with the same scorer share their scoring in BatchTest, so
+// scorers with different parameters must be different instances. The
+// standard scorers have none, and forMethod hands out one of each.
+//
+public interface RarityScorer {
+
+	// Score one result count
+	double score (long totalResults, long indexSize);
+	
+	// Score every result count in the array
+	default void score (long[] totalResults, long indexSize, double[] scores) {
+		for (int i = 0; i < totalResults.length; i++)
+			scores[i] = score(totalResults[i], indexSize);
+	}
+	
+	// Get a standard scorer by name: idf, log, pow, or linear by default
+	//
+	public static RarityScorer forMethod (String method) {
+		switch (method) {
+			case "idf" : return IDF.INSTANCE;
+			case "log" : return Log.INSTANCE;
+			case "pow" : return Power.INSTANCE;
+		}
+		return Linear.INSTANCE;
+	}
+	
+	//===========================================================//
+	// Standard scorers
+	//===========================================================//
+	
+	// Inverse document frequency, scaled to the size of the index
+	//
+	public static final class IDF implements RarityScorer {
+		static final IDF INSTANCE = new IDF();
+		
+		@Override
+		public double score (long totalResults, long indexSize) {
+			if (totalResults == 0)
+				return 1.0;
+			
+			double fraction = indexSize / (double)totalResults;
+			return Math.log(fraction) / Math.log(indexSize);
+		}
+	}
+	
+	public static final class Log implements RarityScorer {
+		static final Log INSTANCE = new Log();
+		
+		@Override
+		public double score (long totalResults, long indexSize) {
+			if (totalResults == 1) 	return Math.log10(indexSize) / 2;
+			else					return (Math.log(indexSize) / Math.log(totalResults) - 1) / 4;
+		}
+	}
+	
+	public static final class Power implements RarityScorer {
+		static final Power INSTANCE = new Power();
+		
+		@Override
+		public double score (long totalResults, long indexSize) {
+			double fraction = 1 - ((double)totalResults / indexSize);
+			double power = Math.log(indexSize);
+			
+			return Math.pow(fraction, power);
+		}
+	}
+	
+	public static final class Linear implements RarityScorer {
+		static final Linear INSTANCE = new Linear();
+		
+		@Override
+		public double score (long totalResults, long indexSize) {
+			return 1 - ((double)totalResults / indexSize);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ *  @author Brian St. Marie
+ *  stmarie@fas.harvard.edu
+ *
+ */
+ 
+package citeunseen;
+
+import java.util.concurrent.TimeUnit;
+
+// Token bucket to hold searches to a provider's rate limit.
+// Tokens refill at a steady rate up to the burst size, and each
+// request takes one. Rather than sleeping until a token is free,
+// callers reserve one and are told how long to wait before using it,
+// so a dispatching thread can schedule the request and move on.
+//
+public class RateLimiter {
+	private final double tokensPerNano;
+	private final double burst;
+	
+	private double tokens;
+	private long lastRefill;
+
+	// Constructor
+	public RateLimiter (double perSecond, int burst) {
+		if (perSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("Rate limit must be positive: "+perSecond+"/s, burst "+burst);
+			
+		this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	// Reserve a token, returning the nanoseconds to wait before using it.
+	// The bucket may go into debt, which queues later callers in order.
+	//
+	public synchronized long reserve () {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+		
+		tokens--;
+		if (tokens >= 0)
+			return 0;
+		return (long)Math.ceil(-tokens / tokensPerNano);
+	}
+	
+	// Give back a reserved token that won't be used, so a cancelled
+	// request doesn't leave its wait for the callers after it
+	//
+	public synchronized void refund () {
+		tokens = Math.min(burst, tokens + 1);
+	}
+}
@@ -9,84 +9,236 @@ package citeunseen;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*; 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import org.apache.http.util.EntityUtils;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import java.util.function.*;
+import java.net.URI;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
  
  public abstract class SearchEngine {
 	//===========================================================//
-	// inner class for individual search threads
+	// inner class for individual search requests
 	//===========================================================//
 	
-	// track thread counts
+	// track request counts
 	private AtomicInteger threadsClosed;
 	private AtomicInteger threadsRetried;
 	private AtomicInteger threadsErrored;	
 	
-	private class SearchThread implements Callable<String> {
-		private final CloseableHttpClient httpClient;
-		private final HttpGet httpGet;
+	// Retries back off exponentially from BACKOFF_BASE, up to BACKOFF_MAX,
+	// waiting a random part of that so retries don't all land at once
+	//
+	private static final long BACKOFF_BASE = 500;		// milliseconds
+	private static final long BACKOFF_MAX = 30000;
+	
+	// Longest to wait for a response before trying again
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+	
+	// An error response from the provider, with its message if we could read one
+	private static class ResponseException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		private final int statusCode;
+		private final long retryAfter;					// milliseconds, 0 if not given
+		
+		ResponseException (int statusCode, String message, long retryAfter) {
+			super(message == null ? String.valueOf(statusCode) : statusCode+" - "+message);
+			this.statusCode = statusCode;
+			this.retryAfter = retryAfter;
+		}
+		
+		// Rate limited, or failing under load
+		boolean throttled () {
+			return statusCode == 429 || statusCode >= 500;
+		}
+	}
+	
+	private class SearchRequest {
+		private final HttpRequest httpRequest;
+		private final RateLimiter rateLimiter;
+		private final ConcurrencyLimiter connections;
 		private final int id;
 		private final int totalThreads;
+		private int retries = 0;
+		private long sentAt;
+		private volatile boolean cancelled = false;
+		private volatile CompletableFuture<HttpResponse<String>> exchange;
+		private final AtomicBoolean waiting = new AtomicBoolean(false);		// holding a rate limit token, not sent yet
 
-		SearchThread (CloseableHttpClient httpClient, HttpGet httpGet, int id, int totalThreads) {
-			this.httpClient = httpClient;
-			this.httpGet = httpGet;
+		SearchRequest (HttpRequest httpRequest, RateLimiter rateLimiter, ConcurrencyLimiter connections, int id, int totalThreads) {
+			this.httpRequest = httpRequest;
+			this.rateLimiter = rateLimiter;
+			this.connections = connections;
 			this.id = id;
 			this.totalThreads = totalThreads;
         }
+		
+		// Send once, after waiting our turn under the rate limit if needed
+		//
+		private CompletableFuture<HttpResponse<String>> sendAsync (final HttpClient httpClient) {
+			long wait = (rateLimiter == null) ? 0 : rateLimiter.reserve();
+			if (wait <= 0)
+				return sendNow(httpClient);
+				
+			waiting.set(true);
+			Executor delayed = CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS);
+			return CompletableFuture.supplyAsync(new Supplier<CompletableFuture<HttpResponse<String>>>() {
+					@Override
+					public CompletableFuture<HttpResponse<String>> get () {
+						waiting.set(false);
+						return sendNow(httpClient);
+					}
+				}, delayed)
+				.thenCompose(Function.<CompletableFuture<HttpResponse<String>>>identity());
+		}
+		
+		private CompletableFuture<HttpResponse<String>> sendNow (HttpClient httpClient) {
+			if (cancelled) {
+				CompletableFuture<HttpResponse<String>> failed = new CompletableFuture<>();
+				failed.completeExceptionally(new CancellationException("Search cancelled"));
+				return failed;
+			}
+			sentAt = System.nanoTime();
+			exchange = httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString());
+			return exchange;
+		}
+		
+		// Stop for good, aborting the exchange in flight and any retries,
+		// so a search that gave up on us isn't still sending requests
+		//
+		void cancel () {
+			cancelled = true;
+			if (waiting.getAndSet(false))
+				rateLimiter.refund();
+			CompletableFuture<HttpResponse<String>> exchange = this.exchange;
+			if (exchange != null)
+				exchange.cancel(true);
+		}
 
-		@Override
-		public String call () {
-			ResponseHandler<String> responseHandler = new BasicResponseHandler();
-			String response = "";
-
-			int retries = 0;
-			int percentComplete = 0;
-			while (true) {
-				try {			
-					HttpResponse httpResponse = httpClient.execute(httpGet);
-					int statusCode = httpResponse.getStatusLine().getStatusCode();
-					if (statusCode != 200) {
-						String responseBody = EntityUtils.toString(httpResponse.getEntity());
-						String errorMsg = SearchEngine.this.getSerpParser().parseError(responseBody);
-						throw new Exception(statusCode+" - "+errorMsg);
-					}				
-					response = responseHandler.handleResponse(httpResponse);
-
-					percentComplete = 100 * threadsClosed.incrementAndGet() / totalThreads;
-					Dev.out.print("Percent complete: "+percentComplete+"% (Retries: "+threadsRetried+" Errors: "+threadsErrored+")\r");
-					break;
-				} catch (Exception e) {
-					if (retries < maxRetries) {
-						retries++;
-						percentComplete = 100 * threadsClosed.get() / totalThreads;
-						Dev.out.print("Percent complete: "+percentComplete+"% (Retries: "+threadsRetried.incrementAndGet()+" Errors: "+threadsErrored+")\r");
-					} else {				
+		// Send the request without blocking, resending on failure until we
+		// run out of retries. Retries wait for the rate limit too. Never
+		// completes exceptionally, an unrepaired search completes with an
+		// empty response like before.
+		//
+		CompletableFuture<String> send (final HttpClient httpClient) {
+			return sendAsync(httpClient)
+				.thenApply(new Function<HttpResponse<String>, String>() {
+					@Override
+					public String apply (HttpResponse<String> httpResponse) {
+						int statusCode = httpResponse.statusCode();
+						if (statusCode != 200) {
+							long retryAfter = retryAfter(httpResponse);
+							String errorMsg = null;
+							try {
+								errorMsg = SearchEngine.this.getSerpParser().parseError(httpResponse.body());
+							} catch (RuntimeException e) {
+								// not the engine's error format, e.g. a proxy's error page
+							}
+							throw new CompletionException(new ResponseException(statusCode, errorMsg, retryAfter));
+						}
+						connections.succeeded(System.nanoTime() - sentAt);
+						
+						int percentComplete = 100 * threadsClosed.incrementAndGet() / totalThreads;
+						Dev.out.print("Percent complete: "+percentComplete+"% (Retries: "+threadsRetried+" Errors: "+threadsErrored+")\r");
+						return httpResponse.body();
+					}
+				})
+				.handle(new BiFunction<String, Throwable, CompletableFuture<String>>() {
+					@Override
+					public CompletableFuture<String> apply (String response, Throwable e) {
+						if (e == null)
+							return CompletableFuture.completedFuture(response);
+						if (cancelled)							// already counted as unfinished
+							return CompletableFuture.completedFuture("");
+						if (e instanceof CompletionException && e.getCause() != null)
+							e = e.getCause();
+							
+						long retryAfter = 0;
+						if (e instanceof ResponseException) {
+							ResponseException responseException = (ResponseException)e;
+							if (responseException.throttled())
+								connections.throttled();
+							retryAfter = responseException.retryAfter;
+						}
+							
+						int percentComplete;
+						if (retries < maxRetries) {
+							retries++;
+							percentComplete = 100 * threadsClosed.get() / totalThreads;
+							Dev.out.print("Percent complete: "+percentComplete+"% (Retries: "+threadsRetried.incrementAndGet()+" Errors: "+threadsErrored+")\r");
+							return retry(httpClient, Math.max(retryAfter, backoff(retries)));
+						}
 						percentComplete = 100 * threadsClosed.incrementAndGet() / totalThreads;
 						Dev.out.print("\r                                                                 ");
 						Dev.out.println("\rThread "+id+" error: "+e.getMessage());
 						Dev.out.print("Percent complete: "+percentComplete+"% (Retries: "+threadsRetried+" Errors: "+threadsErrored.incrementAndGet()+")\r");
-						break;
+						return CompletableFuture.completedFuture("");
 					}
-				}
-			}	
-			return response;
+				})
+				.thenCompose(Function.<CompletableFuture<String>>identity());
+		}
+		
+		// Send again after a delay, in milliseconds
+		//
+		private CompletableFuture<String> retry (final HttpClient httpClient, long delay) {
+			Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+			return CompletableFuture.supplyAsync(new Supplier<CompletableFuture<String>>() {
+					@Override
+					public CompletableFuture<String> get () {
+						return send(httpClient);
+					}
+				}, delayed)
+				.thenCompose(Function.<CompletableFuture<String>>identity());
+		}
+	}
+	
+	// Milliseconds the provider asked us to wait, given in seconds or as
+	// an HTTP date, 0 if not given or unreadable
+	//
+	private static long retryAfter (HttpResponse<?> httpResponse) {
+		String value = httpResponse.headers().firstValue("Retry-After").orElse("").trim();
+		if (value.equals(""))
+			return 0;
+		try {
+			return Math.max(0, 1000 * Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			// not in seconds, try a date
+		}
+		try {
+			long until = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			return Math.max(0, until - System.currentTimeMillis());
+		} catch (DateTimeParseException e) {
+			return 0;
 		}
 	}
+	
+	// Full jitter: anywhere from nothing up to the exponential backoff
+	//
+	private static long backoff (int retry) {
+		long ceiling = BACKOFF_MAX;
+		if (retry < 16)
+			ceiling = Math.min(BACKOFF_MAX, BACKOFF_BASE << (retry - 1));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
 
 	//
 	// Abstract methods defined by subclass
 	//
 	abstract SerpParser getSerpParser ();	
 	abstract Map<String, String> buildQuery (String query, int id);
+	
+	// Queries with the same key share a rate limit, null for one rate
+	// limit across the whole engine. Override for per-account limits.
+	//
+	protected String rateLimitKey (int id) {
+		return null;
+	}
 
 	// The common name and HTML attribution label for this search engine
 	private final String NAME;
@@ -101,11 +253,24 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 	// configuration options, defaults
 	private int maxConnections = 100;
 	private int maxRetries = 4;	
-	private int connectionDelay = 0;
+	private double maxConnectionsPerSecond = 0;
+	private int connectionBurst = 1;
 	private String cachePath = "";
 	private Cache cacheOption = null;	
 	private boolean snippetSearch = true;
 	private boolean console = false;
+	private boolean shareConnections = false;
+	private boolean pipelined = true;
+	private QueryPlanner queryPlanner = null;
+	private int waveSize = 0;
+	private int parallelism = 1;			// number of threads for parsing SERPs, 1 to run in order
+	private boolean keepRawSerps = false;
+	private QueryCache queryCache = null;
+	
+	// In-flight request limits shared by every instance of an engine,
+	// keyed by engine name, so concurrent searches split one limit
+	//
+	private static final ConcurrentMap<String, ConcurrencyLimiter> sharedConnections = new ConcurrentHashMap<>();
 	
 	// objects saved once search is executed
 	private Map<String, SearchResult> searchResults;
@@ -126,14 +291,60 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 		this.snippetSearch = snippetSearch;
 	}
 	
+	// Only search the ngrams the planner picks, in its order.
+	// Without one, every ngram in the document is searched.
+	//
+	public void setQueryPlanner (QueryPlanner queryPlanner) {
+		this.queryPlanner = queryPlanner;
+	}
+	
+	// Search in waves of waveSize ngrams, in document order, skipping any
+	// ngram that snippets from earlier waves already matched everywhere it
+	// appears. Around maxConnections keeps each wave busy. 0 searches all
+	// the ngrams at once. Only applies when searching snippets.
+	//
+	public void setWaveSize (int waveSize) {
+		this.waveSize = Math.max(0, waveSize);
+	}
+	
+	public void setParallelism (int parallelism) {
+		this.parallelism = parallelism;
+	}
+	
+	// Parse each SERP as soon as it arrives, rather than after searching
+	//
+	public void setPipelined (boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+	
+	// The cache only stores parsed results. This also keeps the raw SERPs
+	// in a separate file next to it, in case they need parsing again.
+	//
+	public void setKeepRawSerps (boolean keepRawSerps) {
+		this.keepRawSerps = keepRawSerps;
+	}
+	
+	// Before searching, look ngrams up in the query cache this engine
+	// shares with every other document, and add what's searched to it
+	//
+	public void setUseQueryCache (boolean useQueryCache) {
+		this.queryCache = useQueryCache ? QueryCache.forEngine(NAME) : null;
+	}
+	
 	public void setMaxConnections (int maxConnections) {
 		this.maxConnections = maxConnections;
 	}
 	
 	public void setMaxConnectionsPerSecond (double maxConnectionsPerSecond) {
-		if (maxConnectionsPerSecond <= 0)
-				connectionDelay = 0;
-		else	connectionDelay = (int)(1000 / maxConnectionsPerSecond);	// milliseconds
+		setMaxConnectionsPerSecond(maxConnectionsPerSecond, 1);
+	}
+	
+	// Allow up to burst connections at once, so long as the average
+	// stays under maxConnectionsPerSecond. Zero or less means no limit.
+	//
+	public void setMaxConnectionsPerSecond (double maxConnectionsPerSecond, int burst) {
+		this.maxConnectionsPerSecond = maxConnectionsPerSecond;
+		this.connectionBurst = Math.max(1, burst);
 	}
 	
 	public void setCache (Cache cache, String path) {
@@ -144,6 +355,16 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 	public void setConsole (boolean console) {
 		this.console = console;
 	}
+	
+	// Share maxConnections with every other instance of this engine,
+	// rather than giving each search its own maxConnections. A request
+	// holds its connection for at most its retries' timeouts, or until
+	// its search gives up on it, so a stuck provider can't starve later
+	// searches for good.
+	//
+	public void setShareConnections (boolean shareConnections) {
+		this.shareConnections = shareConnections;
+	}
 
 	// Getters
 	public String toString () {
@@ -174,82 +395,207 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 	
 	// Wrapper to handle cache options and return search results in standard format
 	//
-	@SuppressWarnings("unchecked")
 	public Map<String, SearchResult> search (SourceText sourceText) {
 		Set<String> ngrams = sourceText.getNGrams();	// set as the default text until a new search is done
+		if (queryPlanner != null) {
+			ngrams = queryPlanner.plan(sourceText);
+			Dev.out.println("Planned "+ngrams.size()+" of "+sourceText.size()+" ngrams for searching...");
+		}
 
 		Map<String, String> serps = null;
-		if (cacheOption == Cache.IMPORT || cacheOption == Cache.USE) 
-			serps = (Map<String, String>)Dev.importCache(cachePath);
+		Map<String, ParsedSerp> parsed = new ConcurrentHashMap<>();
+		Map<String, String> coveredBy = new HashMap<>();		// ngrams waves skipped, and the searched ngram that covered them
+		if (cacheOption == Cache.IMPORT || cacheOption == Cache.USE) {
+			Map<String, SearchResult> cached = Dev.importResults(cachePath, ngrams, this);	// only the results we need
+			if (cached != null) {
+				serps = new HashMap<>();				// already parsed, nothing to search
+				for (Map.Entry<String, SearchResult> entry : cached.entrySet())
+					parsed.put(entry.getKey(), matchSnippets(entry.getValue(), sourceText));
+			}
+		}
 			
 		if (serps == null) {
 			if (cacheOption == Cache.IMPORT) {
 				Dev.out.println("Failed loading cache file: "+cachePath);
 			} else {
+				Set<String> unsearched = lookUp(ngrams, sourceText, parsed);
+			
 				// Make sure the user intends to search if we are at the console
-				String msg = "Searching "+this.toString()+" for "+ngrams.size()+" ngrams...";
-				if (Dev.confirm(console, msg))
-					serps = goSearch(ngrams);
-				if (cacheOption == Cache.EXPORT || cacheOption == Cache.USE)
-					Dev.exportCache(serps, cachePath);
+				String msg = "Searching "+this.toString()+" for "+unsearched.size()+" ngrams...";
+				if (unsearched.isEmpty())
+					serps = new HashMap<>();
+				else if (Dev.confirm(console, msg))
+					serps = searchInWaves() ? goSearchInWaves(unsearched, sourceText, parsed, coveredBy) : goSearch(unsearched, sourceText, parsed);
+				
+				if (serps != null) {
+					parseAhead(serps, serps.keySet(), sourceText, parsed);
+					if (queryCache != null)
+						queryCache.putAll(parsedResults(serps.keySet(), parsed));
+					if (cacheOption == Cache.EXPORT || cacheOption == Cache.USE) {
+						Dev.exportResults(parsedResults(ngrams, parsed), cachePath, this);
+						if (keepRawSerps)
+							Dev.exportSerps(serps, rawCachePath(), this);
+					}
+				}
 			}
 		}
-		searchResults = parseResults(serps, sourceText);
+		
+		// Waves skip ngrams on purpose, so only expect results for those searched
+		if (searchInWaves() && serps != null) {
+			Set<String> searched = new HashSet<>(serps.keySet());
+			searched.addAll(parsed.keySet());
+			ngrams = new LinkedHashSet<>(ngrams);
+			ngrams.retainAll(searched);
+		}
+		searchResults = parseResults(serps, ngrams, sourceText, 0, parsed);
+		estimateUnsearched(ngrams, coveredBy, sourceText, searchResults);
 				
 		return searchResults;
 	}
 	
+	// An ngram we didn't search only has the results its snippets credited
+	// it with, so its result count says nothing about how rare it is, and
+	// one with no results at all would get Processor's default score, the
+	// highest there is. Give one a wave skipped the result count of the
+	// ngram whose snippets covered it, as it's likely about as rare as the
+	// text around it. Count those left out of the plan as common as can be,
+	// as the stop word ngrams left out really are.
+	//
+	private void estimateUnsearched (Set<String> searched, Map<String, String> coveredBy, SourceText sourceText, Map<String, SearchResult> searchResults) {
+		for (String ngram : sourceText.getNGrams()) {
+			if (searched.contains(ngram))
+				continue;
+			SearchResult searchResult = searchResults.get(ngram);
+			if (searchResult == null) {
+				searchResult = new SearchResult(this);
+				searchResults.put(ngram, searchResult);
+			}
+			
+			long totalResults = INDEX_SIZE;
+			String coverer = coveredBy.get(ngram);
+			if (coverer != null && searchResults.containsKey(coverer))
+				totalResults = searchResults.get(coverer).totalResults();
+			searchResult.setTotalResults(totalResults);
+		}
+	}
+	
 
 
 	// Main function, perform search
+	//
+	// Requests go out asynchronously, so a handful of threads can keep up to
+	// maxConnections searches in flight at once rather than parking one
+	// thread on each open connection.
 	//	
-	private Map<String, String> goSearch (Set<String> ngrams) {
-		// Disable all the HttpClient log noise
-		org.apache.log4j.Logger.getLogger("org.apache.http").setLevel(org.apache.log4j.Level.OFF);				
-		
+	// When pipelined, each SERP is also parsed into parsed as soon as it
+	// arrives, overlapping the parsing with the rest of the search.
+	//
+	private Map<String, String> goSearch (Set<String> ngrams, SourceText sourceText, Map<String, ParsedSerp> parsed) {
+		return goSearch(ngrams, sourceText, parsed, getConnections());
+	}
+	
+	// Under a limit that outlives this call, so each wave of a search picks
+	// up where the last one left the limit
+	//
+	private Map<String, String> goSearch (Set<String> ngrams, final SourceText sourceText, final Map<String, ParsedSerp> parsed, final ConcurrencyLimiter connections) {
 		Map<String, String> serps = new HashMap<String, String>();
 			
-		ExecutorService executor = Executors.newFixedThreadPool(maxConnections);
-		PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager();
-		manager.setMaxTotal(maxConnections);
-		manager.setDefaultMaxPerRoute(maxConnections);
+		HttpClient httpClient = getHttpClient(NAME);
 		
 		threadsClosed = new AtomicInteger(0);
 		threadsRetried = new AtomicInteger(0);
 		threadsErrored = new AtomicInteger(0);			
 		
-		try (
-			CloseableHttpClient httpClient = HttpClients.custom().setConnectionManager(manager).build();
-		) {
-			Map<String, Future<String>> futures = new HashMap<>();
+		// failsafe, no more than ~30 seconds per page, including the wait for connections,
+		// plus however long the rate limit spreads the searches over and one last response
+		long failsafe = TimeUnit.SECONDS.toNanos(Math.max(30, ngrams.size() / 10));
+		if (maxConnectionsPerSecond > 0)
+			failsafe += (long)(TimeUnit.SECONDS.toNanos(1) * (ngrams.size() / maxConnectionsPerSecond)) + REQUEST_TIMEOUT.toNanos();
+		long deadline = System.nanoTime() + failsafe;
+		
+		try {
+			Map<String, CompletableFuture<String>> futures = new HashMap<>();
+			List<CompletableFuture<Void>> parsing = new ArrayList<>();
+			final SerpParser parser = this.getSerpParser();
 			
 			int id = 0;
 			int total = ngrams.size();
 			for (String ngram : ngrams) {
-				HttpGet httpGet = getHttpGet(ngram, id);
-				Callable<String> thread = new SearchThread(httpClient, httpGet, id, total);
-				futures.put(ngram, executor.submit(thread));
+				if (!connections.acquire(deadline))	// wait for an open connection
+					break;
+				final SearchRequest request;
+				CompletableFuture<String> future;
+				try {
+					request = new SearchRequest(getHttpRequest(ngram, id), getRateLimiter(id), connections, id, total);
+					future = request.send(httpClient);
+				} catch (RuntimeException e) {		// bad query, count it as an error and move on
+					connections.release();
+					Dev.out.println("Thread "+id+" error: "+e.getMessage());
+					threadsErrored.incrementAndGet();
+					id++;
+					continue;
+				}
+				future.whenComplete(new BiConsumer<String, Throwable>() {
+					@Override
+					public void accept (String response, Throwable e) {
+						if (e != null)						// cancelled at the deadline
+							request.cancel();
+						connections.release();
+					}
+				});
+				futures.put(ngram, future);
 				id++;
 				
-				Thread.sleep(connectionDelay);
+				if (pipelined) {
+					final String query = ngram;
+					parsing.add(future.handleAsync(new BiFunction<String, Throwable, Void>() {
+						@Override
+						public Void apply (String serp, Throwable e) {
+							if (e == null && !serp.equals("")) try {
+								parsed.put(query, parseSerp(serp, parser, sourceText));
+							} catch (RuntimeException re) {
+								// leave it for parseResults, which reports bad SERPs
+							}
+							return null;
+						}
+					}));
+				}
 			}
-			executor.shutdown();
 			
 			try {
-				executor.awaitTermination((long)(ngrams.size() / 10), TimeUnit.SECONDS);	// failsafe, no more than ~30 seconds per page
+				CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+					.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// dropped below
+			}
 			
-				// Stupid hack because I can't serialize Futures
-				// FIXME, can I just do serps = new Map<String, String>(tmp); ??
-				for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
-					String json = entry.getValue().get();
-					serps.put(entry.getKey(), json);
+			// Searches unfinished or never sent by the deadline are dropped,
+			// and come back empty so parseResults repairs them
+			//
+			int dropped = 0;
+			for (Map.Entry<String, CompletableFuture<String>> entry : futures.entrySet()) {
+				String json = entry.getValue().getNow(null);
+				if (json == null) {					// give up on it, and its connection
+					entry.getValue().cancel(true);
+					json = "";
+					dropped++;
 				}
-			} catch (InterruptedException e) {
-				Dev.out.println(e.getMessage());
+				serps.put(entry.getKey(), json);
 			}
+			for (String ngram : ngrams) {
+				if (!serps.containsKey(ngram)) {
+					serps.put(ngram, "");
+					dropped++;
+				}
+			}
+			if (dropped > 0) {
+				Dev.out.println();
+				Dev.out.println("Searching timed out, dropped "+dropped+" of "+ngrams.size()+" searches ("+(ngrams.size() - futures.size())+" never sent), to be repaired.");
+			}
+			CompletableFuture.allOf(parsing.toArray(new CompletableFuture<?>[parsing.size()])).join();
 			
 			Dev.out.println();
-			Dev.out.println("Searching completed. All http connections closed.");
+			Dev.out.println("Searching completed.");
 		} catch (Exception e) {
 			Dev.out.println(e.getMessage());
 		}
@@ -257,9 +603,178 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 		return serps;
 	}
 	
-	// Get an HTTP requestor for our query
+	//===========================================================//
+	// Shared http clients
+	//===========================================================//
+	
+	// One client per engine, kept between searches so their connections
+	// stay alive, all driven by the same small pool of daemon threads.
+	//
+	// How long idle connections are kept open is a JVM-wide setting of the
+	// JDK client, shared with everything else in the container, so it's
+	// left to the deployment: -Djdk.httpclient.keepalive.timeout=<seconds>
+	// on the JVM command line, e.g. in Tomcat's setenv. The default is 1200.
+	//
+	private static final Map<String, HttpClient> httpClients = new HashMap<>();
+	private static ExecutorService httpExecutor;
+	
+	private static synchronized HttpClient getHttpClient (String name) {
+		HttpClient httpClient = httpClients.get(name);
+		if (httpClient == null) {
+			if (httpExecutor == null) {
+				httpExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(0);
+					@Override
+					public Thread newThread (Runnable runnable) {
+						Thread thread = new Thread(runnable, "SearchEngine-http-"+count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			httpClient = HttpClient.newBuilder()
+				.executor(httpExecutor)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(Duration.ofSeconds(30))
+				.build();
+			httpClients.put(name, httpClient);
+		}
+		return httpClient;
+	}
+	
+	// Stop the shared clients, letting searches in flight finish first.
+	// A later search just starts new ones.
+	//
+	public static synchronized void shutdown () {
+		if (httpExecutor == null)
+			return;
+		httpClients.clear();
+		httpExecutor.shutdown();
+		try {
+			if (!httpExecutor.awaitTermination(30, TimeUnit.SECONDS))
+				httpExecutor.shutdownNow();
+		} catch (InterruptedException e) {
+			httpExecutor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		httpExecutor = null;
+	}
+	
+	// Rate limits shared by every instance of an engine, keyed by engine
+	// name and rate limit key. The first search to use a limit sets its rate.
+	//
+	private static final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+	
+	private RateLimiter getRateLimiter (int id) {
+		if (maxConnectionsPerSecond <= 0)
+			return null;
+			
+		String key = NAME;
+		String rateLimitKey = rateLimitKey(id);
+		if (rateLimitKey != null)
+			key += "/"+rateLimitKey;
+			
+		RateLimiter rateLimiter = rateLimiters.get(key);
+		if (rateLimiter == null) {
+			RateLimiter newRateLimiter = new RateLimiter(maxConnectionsPerSecond, connectionBurst);
+			rateLimiter = rateLimiters.putIfAbsent(key, newRateLimiter);
+			if (rateLimiter == null)
+				rateLimiter = newRateLimiter;
+		}
+		return rateLimiter;
+	}
+	
+	private boolean searchInWaves () {
+		return waveSize > 0 && snippetSearch();
+	}
+	
+	// Search in waves, in document order, marking the positions of every
+	// ngram matched in a wave's snippets as covered. Later waves skip ngrams
+	// with all their positions covered, since parseResults will credit them
+	// with those snippets anyway, and records in coveredBy the searched
+	// ngram whose snippets covered each one's first position.
 	//
-	private HttpGet getHttpGet(String query, int id) {
+	private Map<String, String> goSearchInWaves (Set<String> ngrams, SourceText sourceText, Map<String, ParsedSerp> parsed, Map<String, String> coveredBy) {
+		Map<String, String> serps = new HashMap<>();
+		SerpParser parser = this.getSerpParser();
+		ConcurrencyLimiter connections = getConnections();		// one limit for every wave
+		BitSet covered = new BitSet(sourceText.length());
+		String[] coverers = new String[sourceText.length()];
+		
+		int size = sourceText.size();
+		int skipped = 0;
+		int id = 0;
+		while (id < size) {
+			Set<String> wave = new LinkedHashSet<>();
+			for (; id < size && wave.size() < waveSize; id++) {
+				String ngram = sourceText.term(id);
+				if (!ngrams.contains(ngram))
+					continue;
+				BitSet uncovered = sourceText.locate(id);
+				if (!uncovered.isEmpty()) {
+					uncovered = (BitSet)uncovered.clone();
+					uncovered.andNot(covered);
+					if (uncovered.isEmpty()) {
+						coveredBy.put(ngram, coverers[sourceText.locate(id).nextSetBit(0)]);
+						skipped++;
+						continue;
+					}
+				}
+				wave.add(ngram);
+			}
+			if (wave.isEmpty())
+				continue;
+				
+			Map<String, String> waveSerps = goSearch(wave, sourceText, parsed, connections);
+			serps.putAll(waveSerps);
+			
+			for (Map.Entry<String, String> entry : waveSerps.entrySet()) {
+				String serp = entry.getValue();
+				if (serp.equals(""))
+					continue;
+					
+				ParsedSerp parsedSerp = parsed.get(entry.getKey());
+				if (parsedSerp == null) try {
+					parsedSerp = parseSerp(serp, parser, sourceText);
+					parsed.put(entry.getKey(), parsedSerp);
+				} catch (RuntimeException e) {
+					continue;								// parseResults will report it
+				}
+				for (Set<String> matches : parsedSerp.snippetMatches.values()) {
+					for (String match : matches) {
+						BitSet positions = sourceText.locate(match);
+						for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1))
+							if (coverers[i] == null)
+								coverers[i] = entry.getKey();
+						covered.or(positions);
+					}
+				}
+			}
+		}
+		Dev.out.println("Skipped "+skipped+" ngrams already matched in snippets.");
+		
+		return serps;
+	}
+	
+	// Get the limit on in-flight requests for a search
+	//
+	private ConcurrencyLimiter getConnections () {
+		if (!shareConnections)
+			return new ConcurrencyLimiter(maxConnections);
+			
+		ConcurrencyLimiter connections = sharedConnections.get(NAME);
+		if (connections == null) {
+			ConcurrencyLimiter newConnections = new ConcurrencyLimiter(maxConnections);
+			connections = sharedConnections.putIfAbsent(NAME, newConnections);
+			if (connections == null)
+				connections = newConnections;
+		}
+		return connections;
+	}
+	
+	// Get an HTTP request for our query
+	//
+	private HttpRequest getHttpRequest (String query, int id) {
 		// build the query per the subclass
 		Map<String, String> queryData = buildQuery(query, id);
 	
@@ -267,17 +782,18 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 		String headerValue = queryData.get("headerValue");
 		String searchURL = queryData.get("searchURL");
 
-		HttpGet httpGet = new HttpGet(searchURL);
-		httpGet.setHeader(headerName, headerValue);
-			
-		return httpGet;
+		return HttpRequest.newBuilder(URI.create(searchURL))
+			.header(headerName, headerValue)
+			.timeout(REQUEST_TIMEOUT)
+			.GET()
+			.build();
 	}
 	
 	public Map<String, SearchResult> parseResults (Map<String, String> serps, SourceText sourceText) {
-		return parseResults(serps, sourceText.getNGrams(), sourceText, 0);
+		return parseResults(serps, sourceText.getNGrams(), sourceText, 0, new ConcurrentHashMap<String, ParsedSerp>());
 	}
-	private Map<String, SearchResult> parseResults (Map<String, String> serps, Set<String> ngrams, SourceText sourceText, int level) {
-		int total = serps.size();
+	private Map<String, SearchResult> parseResults (Map<String, String> serps, Set<String> ngrams, SourceText sourceText, int level, Map<String, ParsedSerp> parsed) {
+		int total = ngrams.size();
 		Dev.out.println("Parsing "+total+" SERPs...");	
 	
 		// Cycle through all the ngrams in the source text, adding urls as we go
@@ -286,16 +802,24 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 		SerpParser parser = this.getSerpParser();
 		Map<String, SearchResult> searchResults = new HashMap<>();
 		
+		// Parse ahead in parallel, then merge in order
+		if (parallelism > 1)
+			parseAhead(serps, ngrams, sourceText, parsed);
+		
 		for (String ngram : ngrams) {
-			String serp = serps.get(ngram);
-			
-			// track broken searches for re-searching
-			if (serp == null || serp.equals("")) {
-				errors.add(ngram);
-				continue;
+			ParsedSerp parsedSerp = parsed.get(ngram);
+			if (parsedSerp == null) {
+				String serp = serps.get(ngram);
+				
+				// track broken searches for re-searching
+				if (serp == null || serp.equals("")) {
+					errors.add(ngram);
+					continue;
+				}
+				parsedSerp = parseSerp(serp, parser, sourceText);
+				parsed.put(ngram, parsedSerp);					// kept for the cache
 			}
-
-			SearchResult parsedResult = parser.parse(serp);
+			SearchResult parsedResult = parsedSerp.result;
 			SearchResult searchResult = searchResults.get(ngram);
 			if (searchResult == null) {
 				searchResult = new SearchResult(this);
@@ -310,8 +834,7 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 					String url = parsedEntry.getKey();
 					String snippet = parsedEntry.getValue();
 					
-					Set<String> matches = new HashSet<>();
-					matches = searchSnippet(snippet, sourceText);
+					Set<String> matches = parsedSerp.snippetMatches.get(url);
 					
 					for (String match : matches) {
 						SearchResult matchResult = searchResults.get(match);
@@ -330,16 +853,23 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 		Dev.out.println("Found "+(total - errors.size())+" SERPs with data ("+errors.size()+" errors)...");
 		if (errors.size() > 0 && level < maxRetries && cacheOption != Cache.IMPORT) {
 			level++;
-			String msg = "Searching "+this.toString()+" for "+errors.size()+" ngrams to repair errors...";
-			if (Dev.confirm(console, msg)) {
-				Map<String, String> newSerps = goSearch(errors);
-				Map<String, SearchResult> newResults = parseResults(newSerps, errors, sourceText, level);
+			Set<String> unsearched = lookUp(errors, sourceText, parsed);
+			String msg = "Searching "+this.toString()+" for "+unsearched.size()+" ngrams to repair errors...";
+			if (unsearched.isEmpty() || Dev.confirm(console, msg)) {
+				Map<String, String> newSerps = unsearched.isEmpty() ? new HashMap<String, String>() : goSearch(unsearched, sourceText, parsed);
+				Map<String, SearchResult> newResults = parseResults(newSerps, errors, sourceText, level, parsed);
 				if (newResults.size() > 0) {
 					serps.putAll(newSerps);
 					searchResults.putAll(newResults);
 				
-					if (level == 1 && cacheOption != null && Dev.confirm(console, "Updating cache file with new results..."))
-						Dev.exportCache(serps, cachePath);
+					// newSerps holds the repairs from every level below too
+					if (level == 1 && queryCache != null)
+						queryCache.putAll(parsedResults(newSerps.keySet(), parsed));
+					if (level == 1 && cacheOption != null && Dev.confirm(console, "Updating cache file with new results...")) {
+						Dev.appendResults(parsedResults(errors, parsed), cachePath, this);
+						if (keepRawSerps)
+							Dev.appendSerps(newSerps, rawCachePath(), this);
+					}
 				}
 			}
 		}
@@ -347,17 +877,138 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 		return searchResults;
 	}		
 	
+	// A parsed SERP, with the ngrams each snippet shares with the source text
+	//
+	private static class ParsedSerp {
+		private final SearchResult result;
+		private final Map<String, Set<String>> snippetMatches;
+		
+		ParsedSerp (SearchResult result, Map<String, Set<String>> snippetMatches) {
+			this.result = result;
+			this.snippetMatches = snippetMatches;
+		}
+	}
+	
+	private ParsedSerp parseSerp (String serp, SerpParser parser, SourceText sourceText) {
+		return matchSnippets(parser.parse(serp), sourceText);
+	}
+	
+	private ParsedSerp matchSnippets (SearchResult result, SourceText sourceText) {
+		Map<String, Set<String>> snippetMatches = new HashMap<>();
+		if (snippetSearch()) {
+			for (Map.Entry<String, String> entry : result.urlMap().entrySet())
+				snippetMatches.put(entry.getKey(), searchSnippet(entry.getValue(), sourceText));
+		}
+		return new ParsedSerp(result, snippetMatches);
+	}
+	
+	// The results parsed from these ngrams' SERPs, as they're cached
+	//
+	private static Map<String, SearchResult> parsedResults (Set<String> ngrams, Map<String, ParsedSerp> parsed) {
+		Map<String, SearchResult> results = new LinkedHashMap<>();
+		for (String ngram : ngrams) {
+			ParsedSerp parsedSerp = parsed.get(ngram);
+			if (parsedSerp != null)
+				results.put(ngram, parsedSerp.result);
+		}
+		return results;
+	}
+	
+	// Take any of these ngrams' results from the query cache, returning
+	// the ngrams still to be searched
+	//
+	private Set<String> lookUp (Set<String> ngrams, SourceText sourceText, Map<String, ParsedSerp> parsed) {
+		if (queryCache == null)
+			return ngrams;
+		if (console)
+			queryCache.load();							// one document, so worth waiting for the file
+			
+		Set<String> unsearched = new LinkedHashSet<>();
+		for (String ngram : ngrams) {
+			SearchResult result = queryCache.get(ngram);
+			if (result != null)
+				parsed.put(ngram, matchSnippets(result, sourceText));
+			else
+				unsearched.add(ngram);
+		}
+		Dev.out.println("Found "+(ngrams.size() - unsearched.size())+" of "+ngrams.size()+" ngrams in the query cache...");
+		return unsearched;
+	}
+	
+	private String rawCachePath () {
+		return cachePath+".raw";
+	}
+	
+	// Parses a share of the SERPs into parsed, leaving any that fail
+	// for parseResults to report in order
+	//
+	private class SerpParserTask implements Callable<Void> {
+		private final List<String> ngrams;
+		private final Map<String, String> serps;
+		private final SourceText sourceText;
+		private final Map<String, ParsedSerp> parsed;
+		
+		SerpParserTask (List<String> ngrams, Map<String, String> serps, SourceText sourceText, Map<String, ParsedSerp> parsed) {
+			this.ngrams = ngrams;
+			this.serps = serps;
+			this.sourceText = sourceText;
+			this.parsed = parsed;
+		}
+		
+		@Override
+		public Void call () {
+			SerpParser parser = SearchEngine.this.getSerpParser();
+			for (String ngram : ngrams) {
+				try {
+					parsed.put(ngram, parseSerp(serps.get(ngram), parser, sourceText));
+				} catch (RuntimeException e) {
+					// parseResults will report it
+				}
+			}
+			return null;
+		}
+	}
+	
+	// Parse any of these SERPs not parsed yet, using parallelism threads
+	//
+	private void parseAhead (Map<String, String> serps, Set<String> ngrams, SourceText sourceText, Map<String, ParsedSerp> parsed) {
+		List<String> unparsed = new ArrayList<>();
+		for (String ngram : ngrams) {
+			String serp = serps.get(ngram);
+			if (serp != null && !serp.equals("") && !parsed.containsKey(ngram))
+				unparsed.add(ngram);
+		}
+		int total = unparsed.size();
+		if (parallelism <= 1 || total <= parallelism) {
+			new SerpParserTask(unparsed, serps, sourceText, parsed).call();
+			return;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<Void>> futures = new ArrayList<>();
+		
+		int chunk = Math.max(1, total / (parallelism * 4));			// a few chunks per thread to even out the load
+		for (int start = 0; start < total; start += chunk) {
+			int end = Math.min(start + chunk, total);
+			futures.add(executor.submit(new SerpParserTask(unparsed.subList(start, end), serps, sourceText, parsed)));
+		}
+		executor.shutdown();
+		
+		try {
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			executor.shutdownNow();
+			throw new IllegalStateException("SERP parsing failed: "+e.getMessage(), e);
+		}
+	}
+	
 	// Search a snippet of text to see if it has any ngrams from our sourcetext
 	//
+	// The returned set is shared between snippets with the same text,
+	// so it can't be changed.
+	//
 	public static Set<String> searchSnippet (String snippet, SourceText sourceText) {
-		// use our sourceText parameters as a basis to create snippet ngrams
-		Set<String> snippetNGrams = SourceText.generateNGrams(snippet, sourceText);	
-		Set<String> matches = new HashSet<>();
-		
-		for (String ngram : snippetNGrams) {	
-			if (sourceText.contains(ngram))			// check if this snippet ngram is in the document
-				matches.add(ngram);					// if it is, add it to the matches
-		}	
-		return matches;								// return all matches
+		return sourceText.getSnippetMatcher().match(snippet);
 	}
 }
\ No newline at end of file
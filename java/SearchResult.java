@@ -54,6 +54,10 @@ public class SearchResult {
 		return totalResults;
 	}
 	
+	public long indexSize () {
+		return engine.indexSize();
+	}
+	
 	public String toString () {
 		return totalResults+" "+urls();
 	}
@@ -72,39 +76,14 @@ public class SearchResult {
 			totalResults = urlMap.size();
 	}
 	
-	// Various methods for getting the relative value
-	// of this search result
+	// Get the relative value of this search result
+	// See RarityScorer for the available methods
 	//
 	public double getRelativeValue(String method) {
-		switch (method) {
-			case "idf" : return getIDF();
-			case "log" : return getLog();
-			case "pow" : return getPower();
-		}
-		return 1 - ((double)totalResults / engine.indexSize());
-	}
-	
-	private double getIDF () {
-		if (totalResults == 0)
-			return 1.0;
-			
-		double fraction = engine.indexSize() / (double)totalResults;
-		return logOfBase(engine.indexSize(), fraction);
+		return getRelativeValue(RarityScorer.forMethod(method));
 	}
 	
-	private double getLog () {
-		if (totalResults == 1) 	return Math.log10(engine.indexSize()) / 2;
-		else					return (logOfBase(totalResults, engine.indexSize()) - 1) / 4;
-	}
-	
-	private double getPower () {
-		double fraction = 1 - ((double)totalResults / engine.indexSize());
-		double power = Math.log(engine.indexSize());
-		
-		return Math.pow(fraction, power);
-	}	
-	
-	private double logOfBase(double base, double num) {
-		return Math.log(num) / Math.log(base);
+	public double getRelativeValue(RarityScorer scorer) {
+		return scorer.score(totalResults, engine.indexSize());
 	}
  }
\ No newline at end of file
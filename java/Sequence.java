@@ -6,6 +6,7 @@
  
 package citeunseen;
  
+import java.util.Arrays;
 import java.util.Set;
 import java.util.HashSet; 
  
@@ -39,7 +40,7 @@ public class Sequence extends SourceFragment {
 	
 	@Override
 	public String toString () {
-		return positionsInOrder().toString();
+		return Arrays.toString(positions().stream().toArray());
 	}
 	
 	// Compare to find the more significant sequence.
@@ -0,0 +1,312 @@
+/**
+ *  @author Brian St. Marie
+ *  stmarie@fas.harvard.edu
+ *
+ */
+ 
+package citeunseen;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.*;
+
+// Binary cache file of search results, read and written as a stream of records.
+//
+// The file starts with MAGIC, the format VERSION and the name of the search
+// engine, followed by one record per ngram until the end of the file:
+//
+//		byte	record type, SERP or RESULT
+//		UTF		ngram
+//		long	when it was searched, in epoch millis
+//		byte	1 if the payload is deflated, else 0
+//		int		payload length in bytes
+//		bytes	payload
+//
+// A SERP payload is the raw response in UTF-8. A RESULT payload is the
+// parsed search result, so loading it needs no JSON parsing:
+//
+//		long	total results
+//		int		number of urls
+//		UTF		url				}
+//		int		snippet length	} for each url, in order
+//		bytes	snippet, UTF-8	}
+//
+// Records can be appended to an existing cache, and a later record for
+// an ngram replaces an earlier one. Since each payload is length-prefixed,
+// a reader can skip the records it doesn't want without decoding them.
+//
+// Caches written by older versions as a serialized Map<String, String>
+// are still read, see Dev.importResults.
+//
+public class SerpCache implements Closeable {
+	public static final int MAGIC = 0x43555343;		// "CUSC"
+	public static final int VERSION = 3;
+	
+	public static final byte SERP = 1;
+	public static final byte RESULT = 2;
+	
+	// Payloads at least this long are deflated, if it makes them smaller
+	private static final int COMPRESS_MIN = 256;
+	
+	private final DataInputStream input;
+	private final int version;
+	private final String engine;
+	
+	private int type;
+	private String ngram;
+	private long time;
+	private boolean compressed;
+	private int length;
+	private boolean pending;						// payload not read yet
+	
+	//===========================================================//
+	// Reading
+	//===========================================================//
+	
+	// Open a cache for reading, throwing if it isn't in this format
+	//
+	public SerpCache (String path) throws IOException {
+		input = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+		try {
+			int magic = input.readInt();
+			if (magic != MAGIC)
+				throw new IOException("Not a SERP cache: "+path);
+			version = input.readInt();
+			if (version > VERSION)
+				throw new IOException("Unsupported SERP cache version "+version+": "+path);
+			engine = (version >= 2) ? input.readUTF() : "";
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+	}
+	
+	// The format version of a cache file, or -1 if it isn't in this
+	// format, e.g. a serialized map
+	//
+	public static int version (String path) {
+		try (DataInputStream input = new DataInputStream(new FileInputStream(path))) {
+			if (input.readInt() != MAGIC)
+				return -1;
+			return input.readInt();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+	
+	public static boolean isSerpCache (String path) {
+		return version(path) >= 0;
+	}
+	
+	// The name of the engine the results came from, empty if not known
+	public String engine () {
+		return engine;
+	}
+	
+	// Move to the next record, skipping the payload of the current one
+	// if it wasn't read. Returns false at the end of the cache.
+	//
+	public boolean next () throws IOException {
+		if (pending)
+			skip(length);
+			
+		type = input.read();
+		if (type < 0)
+			return false;
+		if (type != SERP && type != RESULT)
+			throw new IOException("Unknown SERP cache record type: "+type);
+			
+		ngram = input.readUTF();
+		time = (version >= 3) ? input.readLong() : 0;
+		compressed = input.readBoolean();
+		length = input.readInt();
+		pending = true;
+		return true;
+	}
+	
+	public int type () {
+		return type;
+	}
+	
+	public String ngram () {
+		return ngram;
+	}
+	
+	// When the current record was searched, 0 if not known
+	public long time () {
+		return time;
+	}
+	
+	// Read the current record's SERP, only once per record
+	//
+	public String serp () throws IOException {
+		if (type != SERP)
+			throw new IllegalStateException("Not a SERP record: "+ngram);
+		return new String(payload(), StandardCharsets.UTF_8);
+	}
+	
+	// Read the current record's search result, only once per record
+	//
+	public SearchResult result () throws IOException {
+		if (type != RESULT)
+			throw new IllegalStateException("Not a search result record: "+ngram);
+			
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload()));
+		SearchResult result = new SearchResult();
+		result.setTotalResults(data.readLong());
+		int urls = data.readInt();
+		for (int i = 0; i < urls; i++) {
+			String url = data.readUTF();
+			byte[] snippet = new byte[data.readInt()];
+			data.readFully(snippet);
+			result.put(url, new String(snippet, StandardCharsets.UTF_8));
+		}
+		return result;
+	}
+	
+	@Override
+	public void close () throws IOException {
+		input.close();
+	}
+	
+	private byte[] payload () throws IOException {
+		if (!pending)
+			throw new IllegalStateException("Record already read: "+ngram);
+		pending = false;
+		
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		return compressed ? inflate(payload) : payload;
+	}
+	
+	private void skip (long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = input.skip(bytes);
+			if (skipped <= 0) {
+				if (input.read() < 0)
+					throw new EOFException("Truncated SERP cache record: "+ngram);
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+	
+	//===========================================================//
+	// Writing
+	//===========================================================//
+	
+	// Write raw SERPs to a new cache, or add them to the end of an existing
+	// one, which must already be in this version of the format
+	//
+	public static void writeSerps (Map<String, String> serps, String path, String engine, boolean append) throws IOException {
+		long now = System.currentTimeMillis();
+		try (Writer writer = new Writer(path, engine, append)) {
+			for (Map.Entry<String, String> entry : serps.entrySet()) {
+				String serp = entry.getValue();
+				writer.write(SERP, entry.getKey(), now, (serp == null ? "" : serp).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+	
+	// Write parsed search results, the same way
+	//
+	public static void writeResults (Map<String, SearchResult> results, String path, String engine, boolean append) throws IOException {
+		writeResults(results, null, path, engine, append);
+	}
+	
+	// Write parsed search results with the times they were searched,
+	// or now for any not in times
+	//
+	public static void writeResults (Map<String, SearchResult> results, Map<String, Long> times, String path, String engine, boolean append) throws IOException {
+		long now = System.currentTimeMillis();
+		try (Writer writer = new Writer(path, engine, append)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (Map.Entry<String, SearchResult> entry : results.entrySet()) {
+				SearchResult result = entry.getValue();
+				
+				bytes.reset();
+				DataOutputStream data = new DataOutputStream(bytes);
+				data.writeLong(result.totalResults());
+				data.writeInt(result.urlMap().size());
+				for (Map.Entry<String, String> url : result.urlMap().entrySet()) {
+					byte[] snippet = (url.getValue() == null ? "" : url.getValue()).getBytes(StandardCharsets.UTF_8);
+					data.writeUTF(url.getKey());
+					data.writeInt(snippet.length);
+					data.write(snippet);
+				}
+				data.flush();
+				
+				Long time = (times == null) ? null : times.get(entry.getKey());
+				writer.write(RESULT, entry.getKey(), (time == null) ? now : time, bytes.toByteArray());
+			}
+		}
+	}
+	
+	private static class Writer implements Closeable {
+		private final DataOutputStream output;
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		
+		Writer (String path, String engine, boolean append) throws IOException {
+			boolean header = !append || !new File(path).exists() || new File(path).length() == 0;
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, append), 1 << 16));
+			if (header) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeUTF(engine);
+			}
+		}
+		
+		void write (byte type, String ngram, long time, byte[] payload) throws IOException {
+			byte[] deflated = (payload.length >= COMPRESS_MIN) ? deflate(payload, deflater) : null;
+			boolean compress = deflated != null && deflated.length < payload.length;
+			if (compress)
+				payload = deflated;
+			
+			output.writeByte(type);
+			output.writeUTF(ngram);
+			output.writeLong(time);
+			output.writeBoolean(compress);
+			output.writeInt(payload.length);
+			output.write(payload);
+		}
+		
+		@Override
+		public void close () throws IOException {
+			deflater.end();
+			output.close();
+		}
+	}
+	
+	private static byte[] deflate (byte[] bytes, Deflater deflater) {
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.length / 2);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished())
+			deflated.write(buffer, 0, deflater.deflate(buffer));
+		return deflated.toByteArray();
+	}
+	
+	private static byte[] inflate (byte[] bytes) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes);
+			ByteArrayOutputStream inflated = new ByteArrayOutputStream(bytes.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new EOFException("Truncated compressed SERP");
+				inflated.write(buffer, 0, count);
+			}
+			return inflated.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed SERP: "+e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
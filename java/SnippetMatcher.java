@@ -0,0 +1,48 @@
+/**
+ *  @author Brian St. Marie
+ *  stmarie@fas.harvard.edu
+ *
+ */
+ 
+package citeunseen;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// Finds which of a document's ngrams appear in a snippet of text,
+// scanning with the document's NGramMatcher.
+//
+// The same snippet comes back for many queries, so the matches for each
+// distinct snippet are kept.
+//
+public class SnippetMatcher {
+	private final SourceText sourceText;
+	private final ConcurrentMap<String, Set<String>> matches = new ConcurrentHashMap<>();
+
+	// Constructor
+	public SnippetMatcher (SourceText sourceText) {
+		this.sourceText = sourceText;
+	}
+	
+	// The document's own copies of each of its ngrams in the snippet.
+	// The set is shared, so it can't be changed.
+	//
+	public Set<String> match (String snippet) {
+		Set<String> found = matches.get(snippet);
+		if (found == null) {
+			found = Collections.unmodifiableSet(find(snippet));
+			Set<String> current = matches.putIfAbsent(snippet, found);
+			if (current != null)
+				found = current;
+		}
+		return found;
+	}
+	
+	private Set<String> find (String snippet) {
+		Set<String> found = new HashSet<>();
+		BitSet ids = sourceText.getNGramMatcher().scan(snippet).ids();
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+			found.add(sourceText.term(id));
+		return found;
+	}
+}
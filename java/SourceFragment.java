@@ -7,17 +7,18 @@
 
 package citeunseen;
 
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Set;
 import java.util.HashSet;
-import java.util.TreeSet;
 import java.util.List;
 
 public class SourceFragment implements TokenizedText, Comparable<SourceFragment> {
 	private final String label;
 	private final SourceText sourceText;
 	private Set<SourceFragment> matches;
-	private Set<Integer> positions = new HashSet<>();
+	private final BitSet positions = new BitSet();		// kept in order, no boxing
+	private int size = 0;								// cardinality of positions, kept up to date by every add
 	
 	// Static methods
 	public static Set<SourceFragment> switchToMatches (Set<? extends SourceFragment> fragments) {
@@ -39,12 +40,27 @@ public class SourceFragment implements TokenizedText, Comparable<SourceFragment>
 
 	// Setters
 	public boolean add (int position) {
-		return this.positions.add(position);
+		if (positions.get(position)) return false;
+		positions.set(position);
+		size++;
+		return true;
+	}
+
+	// Add all positions from start to end, inclusive
+	//
+	public void addRange (int start, int end) {
+		positions.set(start, end+1);
+		size = positions.cardinality();
 	}
 
-	public boolean add (Set<Integer> positions) {
+	// Union these positions into this fragment
+	//
+	public boolean add (BitSet positions) {
 		if (positions == null) return false;
-		return this.positions.addAll(positions);	
+		int size = this.size;
+		this.positions.or(positions);
+		this.size = this.positions.cardinality();
+		return this.size != size;
 	}
 	
 	public boolean add (SourceFragment fragment) {
@@ -60,12 +76,19 @@ public class SourceFragment implements TokenizedText, Comparable<SourceFragment>
 	}
 	
 	// Getters
-	public Set<Integer> positions () {
+	// Positions iterate in order via nextSetBit. Read only, change
+	// them through add so size stays right.
+	//
+	public BitSet positions () {
 		return positions;
 	}
 	
-	public Set<Integer> positionsInOrder () {
-		return new TreeSet<>(positions);
+	// Positions this fragment shares with another
+	//
+	public BitSet intersection (SourceFragment other) {
+		BitSet shared = (BitSet)positions.clone();
+		shared.and(other.positions());
+		return shared;
 	}
 	
 	public Set<SourceFragment> matches () {
@@ -77,7 +100,7 @@ public class SourceFragment implements TokenizedText, Comparable<SourceFragment>
 	}
 	
 	public int size () {
-		return positions.size();
+		return size;
 	}
 	
 	public String toString () {
@@ -103,7 +126,7 @@ public class SourceFragment implements TokenizedText, Comparable<SourceFragment>
 	@Override
 	public Set<String> getNGrams () {
 		Set<String> ngrams = new HashSet<>();	
-		for (Integer position : positions)
+		for (int position = positions.nextSetBit(0); position >= 0; position = positions.nextSetBit(position+1))
 			ngrams.add(sourceText.get(position));		
 		return ngrams;
 	}	
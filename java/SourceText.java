@@ -36,11 +36,16 @@ import org.apache.tika.*;
 
 public class SourceText implements TokenizedText {
 	private final String sourceText;
-	private final Map<String, NGram> nGrams = new HashMap<>();
-	private final ArrayList<NGram> nGramsList = new ArrayList<>();
-	private final ArrayList<OffsetAttribute> offsetsList = new ArrayList<>();
+	private final Map<String, Integer> ids = new HashMap<>();		// term dictionary, ngram -> id
+	private final ArrayList<NGram> nGrams = new ArrayList<>();		// and back again, id -> ngram
+	private int[] sequence = new int[256];							// the document as a sequence of ngram ids
+	private int[] starts = new int[256];							// start and end character offsets
+	private int[] ends = new int[256];								//  of each ngram in the sequence
+	private int length = 0;
 	private final Analyzer analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
 	private final int n;
+	private volatile NGramMatcher nGramMatcher;
+	private volatile SnippetMatcher snippetMatcher;
 
 	// Create our Tika parser for parsing non-strings
 	//
@@ -115,15 +120,15 @@ public class SourceText implements TokenizedText {
 		return getSimilarity(fragment.positions());
 	}
 	public double getSimilarity (Set<? extends SourceFragment> fragments) {
-		Set<Integer> positions = new HashSet<>();
+		BitSet positions = new BitSet(length());
 		for (SourceFragment fragment : fragments)
-			positions.addAll(fragment.positions());
+			positions.or(fragment.positions());
 		return getSimilarity(positions);
 	}
-	public double getSimilarity (Collection<Integer> positions) {
+	public double getSimilarity (BitSet positions) {
 		if (this.length() == 0) return 0.0;
 	
-		BigDecimal size = new BigDecimal(positions.size());
+		BigDecimal size = new BigDecimal(positions.cardinality());
 		BigDecimal length = new BigDecimal(this.length());
 		BigDecimal percent = size.divide(length, 3, BigDecimal.ROUND_HALF_UP);
 		
@@ -141,10 +146,10 @@ public class SourceText implements TokenizedText {
 	}
 	
 	public SourceFragment getOverlap (String text) {
-		Set<String> ngrams = generateNGrams(text, this);
+		BitSet ids = getNGramMatcher().scan(text).ids();
 		SourceFragment overlap = new SourceFragment(this);
-		for (String ngram : ngrams)
-			overlap.add(locate(ngram));		
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+			overlap.add(locate(id));		
 		return overlap;
 	}	
 	
@@ -166,10 +171,34 @@ public class SourceText implements TokenizedText {
 	public int getN () {
 		return n;
 	}
+	
+	// Matcher for finding this document's ngrams in other text, built on first use
+	//
+	public NGramMatcher getNGramMatcher () {
+		NGramMatcher matcher = nGramMatcher;
+		if (matcher == null) synchronized (this) {
+			if (nGramMatcher == null)
+				nGramMatcher = new NGramMatcher(this);
+			matcher = nGramMatcher;
+		}
+		return matcher;
+	}
+	
+	// Matcher for finding this document's ngrams in snippets, built on first use
+	//
+	public SnippetMatcher getSnippetMatcher () {
+		SnippetMatcher matcher = snippetMatcher;
+		if (matcher == null) synchronized (this) {
+			if (snippetMatcher == null)
+				snippetMatcher = new SnippetMatcher(this);
+			matcher = snippetMatcher;
+		}
+		return matcher;
+	}
 
 	@Override	
 	public Set<String> getNGrams () {
-		return nGrams.keySet();
+		return ids.keySet();
 	}
 	
 	public String toString () {
@@ -177,36 +206,57 @@ public class SourceText implements TokenizedText {
 	}
 	
 	public int startOffset (int position) {
-		return offsetsList.get(position).startOffset();
+		return starts[position];
 	}
 	
 	public int endOffset (int position) {
-		return offsetsList.get(position).endOffset();
+		return ends[position];
 	}
 	
 	public String get (Integer position) {
-		return nGramsList.get(position).toString();
+		return term(idAt(position));
 	}
 	
 	public boolean contains (String ngram) {
-		if (nGrams.get(ngram) != null)
-			return true;
-		return false;
+		return id(ngram) >= 0;
+	}
+	
+	public BitSet locate (String ngram) {
+		return locate(id(ngram));
 	}
 	
-	public Set<Integer> locate (String ngram) {
-		Set<Integer> positions = new HashSet<>();
+	// Id based access to the ngram dictionary
+	// Ids are dense, from 0 to size() - 1, in order of first appearance
+	//
+	public int id (String ngram) {
+		Integer id = ids.get(ngram);
+		return id == null ? -1 : id;
+	}
+	
+	public String term (int id) {
+		return nGrams.get(id).toString();
+	}
+	
+	public int idAt (int position) {
+		return sequence[position];
+	}
+	
+	public boolean contains (int id) {
+		return id >= 0 && id < nGrams.size();
+	}
+	
+	public BitSet locate (int id) {
+		BitSet positions = new BitSet();
 		
-		NGram nGram = nGrams.get(ngram);		
-		if (nGram != null)
-			positions = nGram.positions();
+		if (contains(id))
+			positions = nGrams.get(id).positions();
 		
 		return positions;
 	}
 	
 	// Length of the document in ngrams
 	public int length () {
-		return nGramsList.size();
+		return length;
 	}
 	
 	// Total number of unique ngrams
@@ -234,7 +284,8 @@ public class SourceText implements TokenizedText {
 		List<SourceFragment> fragmentsByChar = Arrays.asList(new SourceFragment[size]);
 
 		for (SourceFragment fragment : fragments) {
-			for (Integer position : fragment.positions()) {
+			BitSet positions = fragment.positions();
+			for (int position = positions.nextSetBit(0); position >= 0; position = positions.nextSetBit(position+1)) {
 				int start = startOffset(position);
 				int end = endOffset(position);
 				while (start < end) {
@@ -339,25 +390,35 @@ public class SourceText implements TokenizedText {
 			nGramStream.reset();
 			while (nGramStream.incrementToken()) {
 				String ngram = charAttrib.toString();		// get our formatted ngram string
-				NGram nGram = nGrams.get(ngram);			// is this ngram already in the collection?
-				if (nGram == null) {
-					nGram = new NGram(ngram, this);			// if not, create a new nGram for it
-					nGrams.put(ngram, nGram);				// and add it
+				Integer id = ids.get(ngram);				// is this ngram already in the dictionary?
+				if (id == null) {
+					id = nGrams.size();						// if not, give it the next id
+					ids.put(ngram, id);						// and add it
+					nGrams.add(new NGram(ngram, id, this));
 				}
-				nGram.add(position);						// add this position to it
+				nGrams.get(id).add(position);				// add this position to it
 
-				// Add a deep copy of this offset to our list of offsets in order
+				// add to the id sequence for ngrams in order,
+				// remembering the original offsets for later matching
 				//
-				OffsetAttribute offset = new OffsetAttributeImpl();
-				offset.setOffset(offsetAttrib.startOffset(), offsetAttrib.endOffset());
-				offsetsList.add(offset);
-				
-				// add to list for ngrams in order				
-				nGramsList.add(nGram);
+				if (length == sequence.length) {
+					sequence = Arrays.copyOf(sequence, length * 2);
+					starts = Arrays.copyOf(starts, length * 2);
+					ends = Arrays.copyOf(ends, length * 2);
+				}
+				sequence[length] = id;
+				starts[length] = offsetAttrib.startOffset();
+				ends[length] = offsetAttrib.endOffset();
+				length++;
 				
 				position++;				
 			}
 			nGramStream.close();
+			
+			// trim to size
+			sequence = Arrays.copyOf(sequence, length);
+			starts = Arrays.copyOf(starts, length);
+			ends = Arrays.copyOf(ends, length);
 		} catch (IOException e) { e.printStackTrace(); }	// this will never happen since it's a StringReader...
 	}
 	
@@ -402,8 +463,8 @@ public class SourceText implements TokenizedText {
 		String path = root+".ngrams.csv";
 		StringBuilder builder = new StringBuilder();
 		
-		for (NGram nGram : nGrams.values()) {
-			builder.append(Dev.asCSV(nGram, nGram.positionsInOrder()));
+		for (NGram nGram : nGrams) {
+			builder.append(Dev.asCSV(nGram, nGram.positions()));
 		}
 			
 		Dev.output(builder, path);
@@ -32,7 +32,32 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.lucene.analysis.tokenattributes.*;
 
 public class SubmissionHandler extends HttpServlet {
+	private boolean useQueryCache = true;
+	private int queryCacheMaxEntries = QueryCache.DEFAULT_MAX_ENTRIES;
+	
+	// Query cache settings from web.xml
+	@Override
+	public void init () throws ServletException {
+		String param = getInitParameter("useQueryCache");
+		if (param != null)
+			useQueryCache = Boolean.parseBoolean(param.trim());
+		param = getInitParameter("queryCacheMaxEntries");
+		if (param != null) {
+			try {
+				queryCacheMaxEntries = Integer.parseInt(param.trim());
+			} catch (NumberFormatException e) {
+				throw new ServletException("queryCacheMaxEntries is not a number: "+param);
+			}
+		}
+	}
   
+	// Close the search engines' shared http clients with the servlet
+	@Override
+	public void destroy () {
+		SearchEngine.shutdown();
+		super.destroy();
+	}
+	
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		// space in log for readability
@@ -150,6 +175,10 @@ public class SubmissionHandler extends HttpServlet {
 		// Configure search engine options
 		engine.setCache(useCache, Dev.datPath(fileName, n, engine));			
 		engine.setSnippetSearch(snippetSearch);		
+		engine.setShareConnections(true);					// other submissions may be searching too
+		engine.setUseQueryCache(useQueryCache);				// and may have searched the same text
+		if (useQueryCache)
+			QueryCache.forEngine(engine.toString()).setMaxEntries(queryCacheMaxEntries);
 		
 		// Create our source text
 		SourceText sourceText = new SourceText(fileItem.getInputStream(), n, ignoreCitations);		
@@ -257,7 +257,14 @@ class Test {
 		int n = 3;
 		File[] files = (new File("Time Tests")).listFiles();
 		for (File file : files) {
-			Map<String, String> serps = (Map<String, String>)Dev.importCache(Dev.datPath(file, n, engine));
+			String cachePath = Dev.datPath(file, n, engine);
+			if (new File(cachePath+".raw").exists())			// raw SERPs, kept with -k
+				cachePath += ".raw";
+			Map<String, String> serps = Dev.importSerps(cachePath, null);
+			
+			// caches only hold parsed results now, which would time parsing nothing
+			if (serps == null || serps.isEmpty())
+				throw new IllegalStateException("No raw SERPs to time for "+file+", search it again with -k to keep them");
 			
 			long total = 0;
 			SourceText sourceText = null;